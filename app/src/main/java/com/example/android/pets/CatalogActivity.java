@@ -15,42 +15,106 @@
  */
 package com.example.android.pets;
 
+import android.annotation.SuppressLint;
+import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.android.pets.data.MemoryBudgetManager;
+import com.example.android.pets.data.PetBulkOperations;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDataGenerator;
+import com.example.android.pets.data.PetProviderStressHarness;
+import com.example.android.pets.data.PetTraceRecorder;
+import com.example.android.pets.data.PetTraceReplayer;
+
+import java.io.IOException;
 
 // Displays list of pets that were entered and stored in the app.
 
 public class CatalogActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
+    public static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
     // Identifier for the pet data loader
     private static final int PET_LOADER = 0;
 
+    // Identifier for the loader of the list sections
+    private static final int SECTION_LOADER = 1;
+
+    // Key for the grouping of the list in the saved instance state
+    private static final String STATE_GROUP_BY = "group_by";
+
+    // Number of pets inserted by the "Generate pets" menu option.
+    private static final int GENERATED_PET_COUNT = 10000;
+
+    // Rough size of a catalog row in the cursor window, for the footprint report. The size of the
+    // window can't be read (or limited) before Android 9.
+    private static final int ESTIMATED_ROW_BYTES = 96;
+
     // Adapter for the ListView
     PetCursorAdapter mCursorAdapter;
 
+    // Grouping of the list, PetEntry.SECTIONS_BY_NAME or PetEntry.SECTIONS_BY_BREED.
+    private String mGroupBy = PetEntry.SECTIONS_BY_NAME;
+
+    // Boolean that keeps track of whether the pet cursor was released to free memory while the
+    // catalog was in the background. It is loaded again when the catalog is shown.
+    private boolean mCursorReleased = false;
+
+    // Releases the pet cursor once the app is in the background and memory gets low, since the
+    // whole pets table may be in its window.
+    private final MemoryBudgetManager.Trimmable mCursorTrimmer =
+            new MemoryBudgetManager.Trimmable() {
+                @Override
+                public void trimMemory(int level) {
+                    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND && !mCursorReleased) {
+                        getLoaderManager().destroyLoader(PET_LOADER);
+                        mCursorReleased = true;
+                    }
+                }
+
+                @Override
+                public long getFootprintBytes() {
+                    Cursor cursor = mCursorAdapter.getCursor();
+                    return cursor == null ? 0 : (long) cursor.getCount() * ESTIMATED_ROW_BYTES;
+                }
+            };
+
+    @SuppressLint("ClickableViewAccessibility")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
+        if (savedInstanceState != null) {
+            mGroupBy = savedInstanceState.getString(STATE_GROUP_BY, mGroupBy);
+        }
+
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -73,6 +137,41 @@ public class CatalogActivity extends AppCompatActivity implements
         mCursorAdapter = new PetCursorAdapter(this, null);
         petListView.setAdapter(mCursorAdapter);
 
+        // Inflate the rows while the pets are loading, and lay out the text of the rows that are
+        // about to scroll into view in the background, so binding a row does little more than
+        // hand it ready-made views and layouts.
+        mCursorAdapter.preinflateRows(petListView);
+        petListView.setOnScrollListener(mCursorAdapter);
+
+        // The adapter indexes its sections, so the fast scroller can jump straight to one.
+        petListView.setFastScrollEnabled(true);
+
+        // Cancel thumbnail loads of rows that scroll out of view.
+        petListView.setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                mCursorAdapter.onViewRecycled(view);
+            }
+        });
+
+        // Start loading a pet as soon as its row is pressed, so the editor can show it right
+        // away if the press turns out to be a tap. The touch is not consumed.
+        final PetPrefetcher prefetcher = PetPrefetcher.getInstance(this);
+        petListView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                    ListView listView = (ListView) view;
+                    int position = listView.pointToPosition((int) event.getX(),
+                            (int) event.getY());
+                    if (position != ListView.INVALID_POSITION) {
+                        prefetcher.prefetch(listView.getItemIdAtPosition(position));
+                    }
+                }
+                return false;
+            }
+        });
+
         // Set up item click listener.
         petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
@@ -93,9 +192,38 @@ public class CatalogActivity extends AppCompatActivity implements
 
         });
 
-        // Kick off the loader.
+        // Long press starts selecting pets for bulk actions.
+        petListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        petListView.setMultiChoiceModeListener(new SelectionModeListener(petListView));
+
+        // Kick off the loaders.
         getLoaderManager().initLoader(PET_LOADER, null, this);
+        getLoaderManager().initLoader(SECTION_LOADER, null, this);
+
+        MemoryBudgetManager.getInstance(this).register(LOG_TAG, mCursorTrimmer);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Load the pets again if their cursor was released while the catalog was hidden.
+        if (mCursorReleased) {
+            mCursorReleased = false;
+            getLoaderManager().initLoader(PET_LOADER, null, this);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_GROUP_BY, mGroupBy);
+    }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        MemoryBudgetManager.getInstance(this).unregister(mCursorTrimmer);
+        mCursorAdapter.close();
     }
 
     // Helper method to insert hardcoded pet data into database. For debugging purposes only.
@@ -125,11 +253,215 @@ public class CatalogActivity extends AppCompatActivity implements
         Log.v("CatalogActivity", rowsDeleted + " rows deleted from pet database");
     }
 
+    // Shows the number of selected pets and applies bulk actions to them.
+    private class SelectionModeListener implements AbsListView.MultiChoiceModeListener {
+        private final ListView mListView;
+
+        SelectionModeListener(ListView listView) {
+            mListView = listView;
+        }
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                              boolean checked) {
+            mode.setTitle(getString(R.string.catalog_selected_count,
+                    mListView.getCheckedItemCount()));
+        }
+
+        @Override
+        public boolean onActionItemClicked(final ActionMode mode, MenuItem item) {
+            final long[] ids = mListView.getCheckedItemIds();
+            switch (item.getItemId()) {
+                case R.id.action_delete_selected:
+                    showDeleteSelectedConfirmationDialog(mode, ids);
+                    return true;
+                case R.id.action_set_gender_male:
+                case R.id.action_set_gender_female:
+                case R.id.action_set_gender_unknown:
+                case R.id.action_increase_weight:
+                case R.id.action_decrease_weight:
+                    new BulkActionTask(mode, item.getItemId()).execute(ids);
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+        }
+    }
+
+    // Ask the user to confirm deleting the selected pets before deleting them.
+    private void showDeleteSelectedConfirmationDialog(final ActionMode mode, final long[] ids) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.delete_selected_dialog_msg);
+        builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                new BulkActionTask(mode, R.id.action_delete_selected).execute(ids);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+        builder.create().show();
+    }
+
+    // Applies one bulk action to the selected pets in the background. The provider runs it as one
+    // transaction and notifies the list once, so the loader reloads only once.
+    private class BulkActionTask extends AsyncTask<long[], Void, Integer> {
+        private final ActionMode mMode;
+        private final int mAction;
+
+        BulkActionTask(ActionMode mode, int action) {
+            mMode = mode;
+            mAction = action;
+        }
+
+        @Override
+        protected Integer doInBackground(long[]... params) {
+            long[] ids = params[0];
+            switch (mAction) {
+                case R.id.action_delete_selected:
+                    return PetBulkOperations.delete(getContentResolver(), ids);
+                case R.id.action_set_gender_male:
+                    return PetBulkOperations.setGender(getContentResolver(), ids,
+                            PetEntry.GENDER_MALE);
+                case R.id.action_set_gender_female:
+                    return PetBulkOperations.setGender(getContentResolver(), ids,
+                            PetEntry.GENDER_FEMALE);
+                case R.id.action_set_gender_unknown:
+                    return PetBulkOperations.setGender(getContentResolver(), ids,
+                            PetEntry.GENDER_UNKNOWN);
+                case R.id.action_increase_weight:
+                    return PetBulkOperations.adjustWeight(getContentResolver(), ids, 1);
+                case R.id.action_decrease_weight:
+                    return PetBulkOperations.adjustWeight(getContentResolver(), ids, -1);
+                default:
+                    return -1;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            if (count < 0) {
+                Toast.makeText(CatalogActivity.this, R.string.bulk_action_failed,
+                        Toast.LENGTH_SHORT).show();
+            } else {
+                int message = mAction == R.id.action_delete_selected
+                        ? R.string.bulk_delete_successful : R.string.bulk_action_successful;
+                Toast.makeText(CatalogActivity.this, getString(message, count),
+                        Toast.LENGTH_SHORT).show();
+            }
+            mMode.finish();
+        }
+    }
+
+    // Helper method to insert generated pets into the database. For debugging purposes only. The
+    // default seed is used, so starting from an empty database always gives the same pets.
+    private void generatePets() {
+        new GeneratePetsTask().execute(GENERATED_PET_COUNT);
+    }
+
+    // Inserts generated pets in the background and shows how long it took.
+    private class GeneratePetsTask extends AsyncTask<Integer, Void, long[]> {
+        @Override
+        protected long[] doInBackground(Integer... params) {
+            long begin = SystemClock.elapsedRealtime();
+            int inserted = new PetDataGenerator(PetDataGenerator.DEFAULT_SEED)
+                    .insertPets(getContentResolver(), params[0]);
+            return new long[]{inserted, SystemClock.elapsedRealtime() - begin};
+        }
+
+        @Override
+        protected void onPostExecute(long[] result) {
+            Toast.makeText(CatalogActivity.this, getString(R.string.generate_pets_finished,
+                    result[0], result[1]), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    // Helper method to run the provider stress test on a scratch database. For debugging purposes
+    // only. The full report is written to the log.
+    private void runStressTest() {
+        new StressTestTask().execute();
+    }
+
+    // Runs the provider stress test in the background and shows a summary when it is done.
+    private class StressTestTask extends AsyncTask<Void, Void, PetProviderStressHarness.Report> {
+        @Override
+        protected PetProviderStressHarness.Report doInBackground(Void... params) {
+            try {
+                return new PetProviderStressHarness(CatalogActivity.this,
+                        new PetProviderStressHarness.Config()).run();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(PetProviderStressHarness.Report report) {
+            if (report != null) {
+                Toast.makeText(CatalogActivity.this, getString(R.string.stress_test_finished,
+                        report.getThroughput(), report.overallPercentiles[2]),
+                        Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    // Helper method to replay the recorded trace on a scratch database. For debugging purposes
+    // only. The latencies of every operation type are written to the log.
+    private void replayTrace() {
+        new ReplayTraceTask().execute();
+    }
+
+    // Replays the recorded trace in the background and shows a summary when it is done.
+    private class ReplayTraceTask extends AsyncTask<Void, Void, PetTraceReplayer.Report> {
+        @Override
+        protected PetTraceReplayer.Report doInBackground(Void... params) {
+            try {
+                return new PetTraceReplayer(CatalogActivity.this,
+                        new PetTraceReplayer.Config())
+                        .run(PetTraceRecorder.getTraceFile(CatalogActivity.this));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not replay the trace", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(PetTraceReplayer.Report report) {
+            if (report == null) {
+                Toast.makeText(CatalogActivity.this, R.string.replay_trace_failed,
+                        Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(CatalogActivity.this, getString(R.string.replay_trace_finished,
+                        report.getCount(), report.elapsedMillis), Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_group_by_breed)
+                .setChecked(PetEntry.SECTIONS_BY_BREED.equals(mGroupBy));
+        menu.findItem(R.id.action_record_trace).setChecked(PetTraceRecorder.isRecording());
         return true;
     }
 
@@ -137,6 +469,14 @@ public class CatalogActivity extends AppCompatActivity implements
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Group by breed" menu option
+            case R.id.action_group_by_breed:
+                item.setChecked(!item.isChecked());
+                mGroupBy = item.isChecked() ? PetEntry.SECTIONS_BY_BREED
+                        : PetEntry.SECTIONS_BY_NAME;
+                getLoaderManager().restartLoader(PET_LOADER, null, this);
+                getLoaderManager().restartLoader(SECTION_LOADER, null, this);
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertPet();
@@ -145,17 +485,49 @@ public class CatalogActivity extends AppCompatActivity implements
             case R.id.action_delete_all_entries:
                 deleteAllPets();
                 return true;
+            // Respond to a click on the "Generate pets" menu option
+            case R.id.action_generate_pets:
+                generatePets();
+                return true;
+            // Respond to a click on the "Run stress test" menu option
+            case R.id.action_run_stress_test:
+                runStressTest();
+                return true;
+            // Respond to a click on the "Record trace" menu option
+            case R.id.action_record_trace:
+                if (PetTraceRecorder.isRecording()) {
+                    PetTraceRecorder.stop();
+                } else {
+                    PetTraceRecorder.start(this);
+                }
+                item.setChecked(PetTraceRecorder.isRecording());
+                return true;
+            // Respond to a click on the "Replay trace" menu option
+            case R.id.action_replay_trace:
+                replayTrace();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle bundle) {
+        if (id == SECTION_LOADER) {
+            // This loader counts the pets of each section in one aggregate query.
+            return new CursorLoader(this,
+                    PetEntry.buildSectionsUri(mGroupBy),
+                    null,
+                    null,
+                    null,
+                    null);
+        }
+
         // Define a projection that specifies the columns from the table we care about.
         String[] projection = {
                 PetEntry._ID,
                 PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED};
+                PetEntry.COLUMN_PET_BREED_ID,
+                PetEntry.COLUMN_PET_PHOTO};
 
         // Loader will execute the ContentProvider's query method on a background thread.
         return new CursorLoader(this,       // Parent activity context
@@ -163,17 +535,29 @@ public class CatalogActivity extends AppCompatActivity implements
                 projection,                         // Columns to include in the resulting Cursor
                 null,                      // No selection clause
                 null,                   // No selection arguments
-                null);                     // Default sort order
+                PetEntry.SECTIONS_BY_BREED.equals(mGroupBy)
+                        ? PetEntry.SORT_ORDER_BY_BREED      // Section after section, like the
+                        : PetEntry.SORT_ORDER_BY_NAME);     // sections loader counts them
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        if (loader.getId() == SECTION_LOADER) {
+            mCursorAdapter.setSections(data);
+            return;
+        }
+
         // Update PetCursorAdapter with this new cursor containing updated pet data
         mCursorAdapter.swapCursor(data);
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() == SECTION_LOADER) {
+            mCursorAdapter.setSections(null);
+            return;
+        }
+
         // Callback called when the data needs to be deleted
         mCursorAdapter.swapCursor(null);
     }
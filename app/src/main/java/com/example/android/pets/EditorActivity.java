@@ -18,17 +18,22 @@ package com.example.android.pets;
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -36,10 +41,16 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract.DraftEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDraftWriter;
+import com.example.android.pets.data.PetPhotoStore;
+
+import java.io.IOException;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -50,6 +61,12 @@ public class EditorActivity extends AppCompatActivity implements
     // Identifier for the pet data loader.
     private static final int EXISTING_PET_LOADER = 0;
 
+    // Identifier for the draft loader.
+    private static final int DRAFT_LOADER = 1;
+
+    // Request code for picking a photo.
+    private static final int PICK_PHOTO_REQUEST = 1;
+
     // Content URI for the existing pet (null if new pet).
     private Uri mCurrentPetUri;
 
@@ -65,6 +82,15 @@ public class EditorActivity extends AppCompatActivity implements
     // EditText field to enter the pet's gender.
     private Spinner mGenderSpinner;
 
+    // ImageView showing the pet's photo. Tapping it picks a new photo.
+    private ImageView mPhotoImageView;
+
+    // File name of the pet's photo in PetPhotoStore, or null if the pet has no photo.
+    private String mPhoto;
+
+    // File name of the photo currently saved for the pet, so an unsaved new photo can be removed.
+    private String mSavedPhoto;
+
     /**
      * Gender of the pet. The possible values are:
      * PetEntry.GENDER_UNKNOWN for unknown gender,
@@ -73,6 +99,19 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private int mGender = PetEntry.GENDER_UNKNOWN;
 
+    // Pet ID the draft of this editor is stored under (DraftEntry.NEW_PET_ID if new pet).
+    private long mDraftPetId;
+
+    // Writes the editor state to the drafts table in the background while the user types.
+    private PetDraftWriter mDraftWriter;
+
+    // Boolean that keeps track of whether a stored draft has been restored into the editor.
+    private boolean mDraftRestored = false;
+
+    // Boolean that keeps track of whether the fields were filled from a pet prefetched by the
+    // catalog, before the pet loader finished.
+    private boolean mPrefetchShown = false;
+
     // Boolean that keeps track of whether the pet has been edited (true) or not (false).
     private boolean mPetHasChanged = false;
 
@@ -86,6 +125,23 @@ public class EditorActivity extends AppCompatActivity implements
         }
     };
 
+    // TextWatcher schedules a draft save after every edit, once the user has touched the editor.
+    // Text set by the loaders doesn't count as an edit, so it doesn't produce a draft.
+    private TextWatcher mDraftTextWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            scheduleDraftSave();
+        }
+    };
+
     @SuppressLint("ClickableViewAccessibility")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -96,6 +152,8 @@ public class EditorActivity extends AppCompatActivity implements
         Intent intent = getIntent();
         mCurrentPetUri = intent.getData();
 
+        mDraftWriter = new PetDraftWriter(this);
+
         // If the intent does NOT contain a pet content URI, then we know that we are creating a new pet.
         if (mCurrentPetUri == null) {
             // This is a new pet, so change the app bar to say "Add a Pet."
@@ -103,7 +161,14 @@ public class EditorActivity extends AppCompatActivity implements
 
             // Invalidate the options menu, so the "Delete" menu option can be hidden.
             invalidateOptionsMenu();
+
+            // Look for an unsaved draft of a new pet left behind by an earlier editor.
+            mDraftPetId = DraftEntry.NEW_PET_ID;
+            getLoaderManager().initLoader(DRAFT_LOADER, null, this);
         } else {
+            // The draft of an existing pet is restored once the pet itself has been loaded.
+            mDraftPetId = ContentUris.parseId(mCurrentPetUri);
+
             // Otherwise, this is an existing pet, so change app bar to say "Edit Pet."
             setTitle(getString(R.string.editor_activity_title_edit_pet));
 
@@ -117,6 +182,7 @@ public class EditorActivity extends AppCompatActivity implements
         mBreedEditText = findViewById(R.id.edit_pet_breed);
         mWeightEditText = findViewById(R.id.edit_pet_weight);
         mGenderSpinner = findViewById(R.id.spinner_gender);
+        mPhotoImageView = findViewById(R.id.edit_pet_photo);
 
         // Set up OnTouchListeners on all the input fields so we can determine if the user has
         // touched or modified them. This will let us know if there are unsaved changes or not,
@@ -126,7 +192,148 @@ public class EditorActivity extends AppCompatActivity implements
         mWeightEditText.setOnTouchListener(mTouchListener);
         mGenderSpinner.setOnTouchListener(mTouchListener);
 
+        // Set up TextWatchers so edits are saved as a draft in the background while typing.
+        mNameEditText.addTextChangedListener(mDraftTextWatcher);
+        mBreedEditText.addTextChangedListener(mDraftTextWatcher);
+        mWeightEditText.addTextChangedListener(mDraftTextWatcher);
+
         setupSpinner();
+
+        // Set up the photo to open a picker for a new photo when tapped.
+        mPhotoImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                pickIntent.setType("image/*");
+                startActivityForResult(Intent.createChooser(pickIntent,
+                        getString(R.string.choose_photo)), PICK_PHOTO_REQUEST);
+            }
+        });
+
+        // If the catalog already loaded the pet while it was being tapped, show it right away.
+        // The pet loader still runs and keeps the fields up to date.
+        if (mCurrentPetUri != null && savedInstanceState == null) {
+            Cursor prefetched = PetPrefetcher.getInstance(this).take(mDraftPetId);
+            if (prefetched != null) {
+                try {
+                    showPet(prefetched);
+                } finally {
+                    prefetched.close();
+                }
+                mPrefetchShown = true;
+                getLoaderManager().initLoader(DRAFT_LOADER, null, this);
+            }
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == PICK_PHOTO_REQUEST && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            new ImportPhotoTask().execute(data.getData());
+        }
+    }
+
+    // Copies a picked image into the photo store in the background, then shows it.
+    private class ImportPhotoTask extends AsyncTask<Uri, Void, String> {
+        @Override
+        protected String doInBackground(Uri... uris) {
+            return PetPhotoStore.importPhoto(EditorActivity.this, uris[0]);
+        }
+
+        @Override
+        protected void onPostExecute(String photo) {
+            if (photo == null) {
+                Toast.makeText(EditorActivity.this, getString(R.string.editor_photo_failed),
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // A photo imported earlier in this session and now replaced was never saved.
+            discardUnsavedPhoto();
+
+            mPhoto = photo;
+            mPetHasChanged = true;
+            showPhoto();
+            scheduleDraftSave();
+        }
+    }
+
+    // Show the current photo, decoded in the background at the size of the photo view.
+    private void showPhoto() {
+        mPhotoImageView.setImageResource(R.drawable.ic_photo_placeholder);
+        if (mPhoto == null) {
+            return;
+        }
+
+        final String photo = mPhoto;
+        final int size = getResources().getDimensionPixelSize(R.dimen.editor_photo_size);
+        new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                try {
+                    return PetPhotoStore.decodeSampled(EditorActivity.this,
+                            Uri.fromFile(PetPhotoStore.getPhotoFile(EditorActivity.this, photo)),
+                            size);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap bitmap) {
+                // Only show the bitmap if the photo hasn't changed in the meantime.
+                if (bitmap != null && photo.equals(mPhoto)) {
+                    mPhotoImageView.setImageBitmap(bitmap);
+                }
+            }
+        }.execute();
+    }
+
+    // Delete the current photo if it was picked in the editor and never saved with the pet.
+    private void discardUnsavedPhoto() {
+        final String photo = mPhoto;
+        if (photo != null && !photo.equals(mSavedPhoto)) {
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PetPhotoStore.deletePhoto(getApplicationContext(), photo);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Write the pending draft now, as the process may be killed while in the background.
+        mDraftWriter.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDraftWriter.quit();
+    }
+
+    // Schedule the current editor state to be written as a draft, if the user has changed it.
+    private void scheduleDraftSave() {
+        if (!mPetHasChanged) {
+            return;
+        }
+
+        // Copy the raw field contents, so the draft restores exactly what the user typed.
+        ContentValues draft = new ContentValues();
+        draft.put(DraftEntry.COLUMN_DRAFT_PET_ID, mDraftPetId);
+        draft.put(DraftEntry.COLUMN_DRAFT_NAME, mNameEditText.getText().toString());
+        draft.put(DraftEntry.COLUMN_DRAFT_BREED, mBreedEditText.getText().toString());
+        draft.put(DraftEntry.COLUMN_DRAFT_GENDER, mGender);
+        draft.put(DraftEntry.COLUMN_DRAFT_WEIGHT, mWeightEditText.getText().toString());
+        draft.put(DraftEntry.COLUMN_DRAFT_PHOTO, mPhoto);
+        draft.put(DraftEntry.COLUMN_DRAFT_UPDATED, System.currentTimeMillis());
+
+        mDraftWriter.schedule(draft);
     }
 
     // Setup the dropdown spinner that allows the user to select the gender of the pet.
@@ -156,6 +363,7 @@ public class EditorActivity extends AppCompatActivity implements
                         mGender = PetEntry.GENDER_UNKNOWN; // Unknown
                     }
                 }
+                scheduleDraftSave();
             }
 
             // Because AdapterView is an abstract class, onNothingSelected must be defined
@@ -176,7 +384,8 @@ public class EditorActivity extends AppCompatActivity implements
         // Check if this is supposed to be a new pet and check if all the fields in editor are blank.
         if (mCurrentPetUri == null &&
                 TextUtils.isEmpty(nameString) && TextUtils.isEmpty(breedString) &&
-                TextUtils.isEmpty(weightString) && mGender == PetEntry.GENDER_UNKNOWN) {
+                TextUtils.isEmpty(weightString) && mGender == PetEntry.GENDER_UNKNOWN &&
+                mPhoto == null) {
             // Since no fields were modified, we can return early without creating a new pet.
             // No need to create ContentValues and no need to do any ContentProvider operations.
             return;
@@ -188,6 +397,7 @@ public class EditorActivity extends AppCompatActivity implements
         values.put(PetEntry.COLUMN_PET_NAME, nameString);
         values.put(PetEntry.COLUMN_PET_BREED, breedString);
         values.put(PetEntry.COLUMN_PET_GENDER, mGender);
+        values.put(PetEntry.COLUMN_PET_PHOTO, mPhoto);
 
         // If weight not provided by user, do not parse string into integer value. Use 0 by default.
         int weight = 0;
@@ -211,6 +421,9 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the insertion was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_insert_pet_successful),
                         Toast.LENGTH_SHORT).show();
+
+                // The pet is saved, so its draft is no longer needed.
+                mDraftWriter.discard(mDraftPetId);
             }
         } else {
             // Otherwise, this is an existing pet, so update the pet with content URI (mCurrentPetUri)
@@ -228,6 +441,9 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the update was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_update_pet_successful),
                         Toast.LENGTH_SHORT).show();
+
+                // The pet is saved, so its draft is no longer needed.
+                mDraftWriter.discard(mDraftPetId);
             }
         }
     }
@@ -283,6 +499,8 @@ public class EditorActivity extends AppCompatActivity implements
                             @Override
                             public void onClick(DialogInterface dialogInterface, int i) {
                                 // User clicked "Discard" button, navigate to parent activity.
+                                mDraftWriter.discard(mDraftPetId);
+                                discardUnsavedPhoto();
                                 NavUtils.navigateUpFromSameTask(EditorActivity.this);
                             }
                         };
@@ -311,6 +529,8 @@ public class EditorActivity extends AppCompatActivity implements
                     public void onClick(DialogInterface dialogInterface, int i) {
 
                         // User clicked "Discard" button, close current activity.
+                        mDraftWriter.discard(mDraftPetId);
+                        discardUnsavedPhoto();
                         finish();
                     }
 
@@ -323,18 +543,21 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-                PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT};
+        if (id == DRAFT_LOADER) {
+            // This loader will read the stored draft (if any) for the pet being edited.
+            return new CursorLoader(this,
+                    ContentUris.withAppendedId(DraftEntry.CONTENT_URI, mDraftPetId),
+                    null,
+                    null,
+                    null,
+                    null);
+        }
 
         // This loader will execute the ContentProvider's query method on background thread.
+        // It reads the same columns as a prefetched pet, so both are shown the same way.
         return new CursorLoader(this,   // Parent activity context.
                 mCurrentPetUri,                 // Query the content URI for the current pet.
-                projection,                     // Columns to include in the resulting Cursor.
+                PetPrefetcher.PROJECTION,       // Columns to include in the resulting Cursor.
                 null,                  // No selection clause.
                 null,               // No selection arguments.
                 null);                 // Default sort order.
@@ -342,11 +565,28 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        // Bail early if the cursor is null or there is less than 1 row in the cursor.
-        if (cursor == null || cursor.getCount() < 1) {
+        if (loader.getId() == DRAFT_LOADER) {
+            restoreDraft(cursor);
+            return;
+        }
+
+        // The pet is loaded, so now look for a draft that should be restored on top of it.
+        getLoaderManager().initLoader(DRAFT_LOADER, null, this);
+
+        // Bail early if the cursor is null or there is less than 1 row in the cursor, or if the
+        // fields already hold a restored draft, or edits the user started on the prefetched pet,
+        // that must not be overwritten.
+        if (cursor == null || cursor.getCount() < 1 || mDraftRestored
+                || (mPrefetchShown && mPetHasChanged)) {
             return;
         }
 
+        showPet(cursor);
+    }
+
+    // Fill the editor with the pet in the first row of the given cursor, which has the columns of
+    // PetPrefetcher.PROJECTION.
+    private void showPet(Cursor cursor) {
         // Proceed with moving to the first row of the cursor and reading data from it.
         if (cursor.moveToFirst()) {
 
@@ -355,42 +595,80 @@ public class EditorActivity extends AppCompatActivity implements
             int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
             int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
             int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+            int photoColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO);
 
             //Extract out the value from the Cursor for the given column index.
             String name = cursor.getString(nameColumnIndex);
             String breed = cursor.getString(breedColumnIndex);
             int gender = cursor.getInt(genderColumnIndex);
             int weight = cursor.getInt(weightColumnIndex);
+            mPhoto = cursor.getString(photoColumnIndex);
+            mSavedPhoto = mPhoto;
 
             // Update the views on screen with values from the database.
             mNameEditText.setText(name);
             mBreedEditText.setText(breed);
             mWeightEditText.setText(Integer.toString(weight));
+            showPhoto();
 
-            // Gender is a dropdown spinner, so map the constant value from the database into
-            // one of the dropdown options (0 is unknown, 1 is male, 2 is female). Then call
-            // setSelection() so that option is displayed on screen as the current selection.
-            switch (gender) {
-                case PetEntry.GENDER_MALE:
-                    mGenderSpinner.setSelection(1);
-                    break;
-                case PetEntry.GENDER_FEMALE:
-                    mGenderSpinner.setSelection(2);
-                    break;
-                default:
-                    mGenderSpinner.setSelection(0);
-                    break;
-            }
+            setGenderSelection(gender);
+        }
+    }
+
+    // Fill the editor with the stored draft, if there is one, and mark the pet as changed.
+    private void restoreDraft(Cursor cursor) {
+        if (mDraftRestored || cursor == null || !cursor.moveToFirst()) {
+            return;
+        }
+
+        mNameEditText.setText(cursor.getString(
+                cursor.getColumnIndex(DraftEntry.COLUMN_DRAFT_NAME)));
+        mBreedEditText.setText(cursor.getString(
+                cursor.getColumnIndex(DraftEntry.COLUMN_DRAFT_BREED)));
+        mWeightEditText.setText(cursor.getString(
+                cursor.getColumnIndex(DraftEntry.COLUMN_DRAFT_WEIGHT)));
+        setGenderSelection(cursor.getInt(cursor.getColumnIndex(DraftEntry.COLUMN_DRAFT_GENDER)));
+        mPhoto = cursor.getString(cursor.getColumnIndex(DraftEntry.COLUMN_DRAFT_PHOTO));
+        showPhoto();
+
+        // The restored values are unsaved changes, so warn before leaving and keep saving drafts.
+        mDraftRestored = true;
+        mPetHasChanged = true;
+
+        Toast.makeText(this, getString(R.string.editor_draft_restored), Toast.LENGTH_SHORT).show();
+    }
+
+    // Gender is a dropdown spinner, so map the constant value from the database into
+    // one of the dropdown options (0 is unknown, 1 is male, 2 is female). Then call
+    // setSelection() so that option is displayed on screen as the current selection.
+    private void setGenderSelection(int gender) {
+        switch (gender) {
+            case PetEntry.GENDER_MALE:
+                mGenderSpinner.setSelection(1);
+                break;
+            case PetEntry.GENDER_FEMALE:
+                mGenderSpinner.setSelection(2);
+                break;
+            default:
+                mGenderSpinner.setSelection(0);
+                break;
         }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        // The draft loader holds nothing on screen, so there is nothing to clear.
+        if (loader.getId() == DRAFT_LOADER) {
+            return;
+        }
+
         // If the loader is invalidated, clear out all the data from the input fields.
         mNameEditText.setText("");
         mBreedEditText.setText("");
         mWeightEditText.setText("");
         mGenderSpinner.setSelection(0); // Select "Unknown" gender.
+        mPhoto = null;
+        showPhoto();
     }
 
     /**
@@ -460,6 +738,9 @@ public class EditorActivity extends AppCompatActivity implements
             // identifies the pet that we want.
             int rowsDeleted = getContentResolver().delete(mCurrentPetUri, null, null);
 
+            // A deleted pet has nothing left to restore.
+            mDraftWriter.discard(mDraftPetId);
+
             // Show a toast message depending on whether or not the delete was successful.
             if (rowsDeleted == 0) {
                 // If no rows were deleted, then there was an error with the delete.
@@ -2,20 +2,72 @@ package com.example.android.pets;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.res.Resources;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CursorAdapter;
-import android.widget.TextView;
+import android.widget.ImageView;
+import android.widget.ListView;
+import android.widget.SectionIndexer;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
+import java.util.Arrays;
+
 // PetCursorAdapter is an adapter for a list or grid view that uses a Cursor of pet data as its
 // data source. This adapter knows how to create list items for each row of pet data in the Cursor.
 
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends CursorAdapter implements SectionIndexer,
+        AbsListView.OnScrollListener {
+
+    // Number of rows beyond each end of the visible ones whose text is laid out ahead of time.
+    // A fling scrolls a few rows per frame, so this keeps the layouts well ahead of it.
+    private static final int LOOKAHEAD_ROWS = 20;
+
+    // Loads the pet photo thumbnails in the background.
+    private final PetThumbnailLoader mThumbnailLoader;
+
+    // Lays out the text of the rows, mostly ahead of time.
+    private final PetTextLayoutCache mTextLayouts;
+
+    // Pool of rows inflated ahead of time. Null until preinflateRows() is called.
+    private PetRowInflater mRowInflater;
+
+    // Positions of the rows whose text layouts have been asked for, from and to (exclusive).
+    private int mPreparedFrom;
+    private int mPreparedTo;
+
+    // Reused to read the names of the rows to prepare, so that doesn't allocate a String per row.
+    private final CharArrayBuffer mPrepareBuffer = new CharArrayBuffer(16);
+
+    // Lays the text out again when the rows turn out to be narrower than assumed, which happens
+    // once when the list is first laid out.
+    private final PetRowTextView.OnTextWidthChangedListener mTextWidthListener =
+            new PetRowTextView.OnTextWidthChangedListener() {
+                @Override
+                public void onTextWidthChanged(PetRowTextView view, int width) {
+                    if (mTextLayouts.setWidth(width)) {
+                        mPreparedFrom = 0;
+                        mPreparedTo = 0;
+                        // The list is in the middle of a layout pass, so bind it again after.
+                        view.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                notifyDataSetChanged();
+                            }
+                        });
+                    }
+                }
+            };
+
+    // Labels of the sections of the list, for the fast scroll index, and the position of the
+    // first pet of each section. Empty until setSections() is called.
+    private String[] mSections = new String[0];
+    private int[] mSectionPositions = new int[0];
 
     /**
      * Constructs a PetCursorAdapter.
@@ -25,6 +77,103 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     public PetCursorAdapter(Context context, Cursor c) {
         super(context, c, 0 /* flags */);
+        mThumbnailLoader = PetThumbnailLoader.getInstance(context);
+        mTextLayouts = new PetTextLayoutCache(context);
+    }
+
+    /**
+     * Starts inflating the rows of the given list in the background, so they are ready by the
+     * time the pets are loaded. Call once the list exists.
+     *
+     * @param listView The list this adapter is set on.
+     */
+    public void preinflateRows(ListView listView) {
+        Resources res = listView.getResources();
+        int rowHeight = res.getDimensionPixelSize(R.dimen.thumbnail_size)
+                + 2 * res.getDimensionPixelSize(R.dimen.activity_margin);
+        mRowInflater = new PetRowInflater(listView.getContext(), R.layout.list_item, listView,
+                rowHeight);
+    }
+
+    /**
+     * Stops the background work of the adapter. Call when the list is destroyed.
+     */
+    public void close() {
+        mTextLayouts.close();
+        if (mRowInflater != null) {
+            mRowInflater.close();
+        }
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        // Positions refer to other pets in the new cursor.
+        mPreparedFrom = 0;
+        mPreparedTo = 0;
+        return super.swapCursor(newCursor);
+    }
+
+    /**
+     * Cancels the thumbnail load of a list item that scrolled out of view, so the load doesn't
+     * compete with the rows that are now visible. Called by the ListView's RecyclerListener.
+     *
+     * @param view The list item view that was moved to the scrap heap.
+     */
+    public void onViewRecycled(View view) {
+        ImageView photoImageView = view.findViewById(R.id.photo);
+        mThumbnailLoader.cancel(photoImageView);
+    }
+
+    /**
+     * Sets the sections of the list from a cursor over PetEntry.CONTENT_SECTIONS_URI, whose
+     * grouping must match the sort order of the pets cursor. Only the sections cursor is read, so
+     * the pets cursor is never scanned to build the index.
+     *
+     * @param sections The cursor with the label and pet count of each section, or null for none.
+     */
+    public void setSections(Cursor sections) {
+        int count = sections == null ? 0 : sections.getCount();
+        mSections = new String[count];
+        mSectionPositions = new int[count];
+        if (sections != null) {
+            int labelColumnIndex = sections.getColumnIndex(PetEntry.COLUMN_SECTION_LABEL);
+            int countColumnIndex = sections.getColumnIndex(PetEntry.COLUMN_SECTION_COUNT);
+            int position = 0;
+            sections.moveToPosition(-1);
+            for (int i = 0; sections.moveToNext(); i++) {
+                // Only the pets of unknown breed have no label.
+                String label = sections.getString(labelColumnIndex);
+                mSections[i] = label != null ? label : mContext.getString(R.string.unknown_breed);
+                mSectionPositions[i] = position;
+                position += sections.getInt(countColumnIndex);
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        if (mSectionPositions.length == 0) {
+            return 0;
+        }
+        section = Math.max(0, Math.min(section, mSectionPositions.length - 1));
+        // The pets and their sections are loaded separately, so they may briefly disagree.
+        return Math.min(mSectionPositions[section], Math.max(0, getCount() - 1));
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (mSectionPositions.length == 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(mSectionPositions, position);
+        // Between two section starts, the position belongs to the earlier section.
+        return index >= 0 ? index : Math.max(0, -index - 2);
     }
 
     /**
@@ -37,12 +186,17 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        View view = mRowInflater != null ? mRowInflater.obtain(parent)
+                : LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        // Both text views are as wide as the text column, so either one can report its width.
+        PetRowTextView nameTextView = view.findViewById(R.id.name);
+        nameTextView.setOnTextWidthChangedListener(mTextWidthListener);
+        return view;
     }
 
     /**
      * This method binds the pet data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current pet can be set on the name TextView
+     * list item layout. For example, the name for the current pet can be set on the name view
      * in the list item layout.
      *
      * @param view    Existing view, returned earlier by newView() method.
@@ -53,25 +207,112 @@ public class PetCursorAdapter extends CursorAdapter {
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
         // Find individuals views that we want to modify in the list item layout.
-        TextView nameTextView = view.findViewById(R.id.name);
-        TextView summaryTextView = view.findViewById(R.id.summary);
+        PetRowTextView nameTextView = view.findViewById(R.id.name);
+        PetRowTextView summaryTextView = view.findViewById(R.id.summary);
+        ImageView photoImageView = view.findViewById(R.id.photo);
 
         // Find the columns of pet attributes that we're interested in.
+        int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
         int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
-        int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+        int breedIdColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED_ID);
 
-        // Read the pet attributes from the Cursor for the current pet.
-        String petName = cursor.getString(nameColumnIndex);
-        String petBreed = cursor.getString(breedColumnIndex);
+        // Read the pet attributes from the Cursor for the current pet. The name is copied into a
+        // char buffer kept with the view, so binding doesn't allocate a String per row unless its
+        // layout has to be built here. The breed is read as an ID, and its layout is shared by
+        // all pets of the breed.
+        CharArrayBuffer petName = (CharArrayBuffer) nameTextView.getTag(R.id.name_buffer);
+        if (petName == null) {
+            petName = new CharArrayBuffer(16);
+            nameTextView.setTag(R.id.name_buffer, petName);
+        }
+        cursor.copyStringToBuffer(nameColumnIndex, petName);
+        long breedId = cursor.isNull(breedIdColumnIndex) ? PetTextLayoutCache.NO_BREED
+                : cursor.getLong(breedIdColumnIndex);
 
-        // If the pet breed is an empty string or null, then use some default text that says
-        // "Unknown breed," so the TextView isn't blank.
-        if (TextUtils.isEmpty(petBreed)) {
-            petBreed = context.getString(R.string.unknown_breed);
+        // Show the text layouts of the current pet, which were usually built in the background
+        // while the row was still out of view (see onScroll()).
+        nameTextView.setLayout(mTextLayouts.getNameLayout(cursor.getLong(idColumnIndex), petName));
+        summaryTextView.setLayout(mTextLayouts.getBreedLayout(breedId));
+
+        // Show the photo thumbnail, loading it in the background unless it's cached. This also
+        // cancels the load still running for the pet this view was previously bound to.
+        int photoColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO);
+        String photo = photoColumnIndex == -1 ? null : cursor.getString(photoColumnIndex);
+        mThumbnailLoader.load(photo, photoImageView);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    // Ask for the text layouts of the rows that are about to scroll into view. Only the rows
+    // that entered the window around the visible ones since the last call are read, which is
+    // usually one or two per frame. Their names are copied into one char array for the
+    // background thread, so a fling doesn't allocate a String per row.
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        Cursor cursor = getCursor();
+        if (cursor == null || visibleItemCount == 0) {
+            return;
         }
+        int from = Math.max(0, firstVisibleItem - LOOKAHEAD_ROWS);
+        int to = Math.min(cursor.getCount(), firstVisibleItem + visibleItemCount + LOOKAHEAD_ROWS);
+        int count = 0;
+        for (int position = from; position < to; position++) {
+            if (isNewlyPrepared(position, firstVisibleItem, visibleItemCount)) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            mPreparedFrom = from;
+            mPreparedTo = to;
+            return;
+        }
+
+        int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedIdColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED_ID);
+        long[] ids = new long[count];
+        long[] breedIds = new long[count];
+        int[] nameEnds = new int[count];
+        char[] names = new char[count * mPrepareBuffer.data.length];
+        int length = 0;
+        int i = 0;
+        for (int position = from; position < to; position++) {
+            if (!isNewlyPrepared(position, firstVisibleItem, visibleItemCount)
+                    || !cursor.moveToPosition(position)) {
+                continue;
+            }
+            ids[i] = cursor.getLong(idColumnIndex);
+            // A null name is copied as an empty one.
+            cursor.copyStringToBuffer(nameColumnIndex, mPrepareBuffer);
+            int size = mPrepareBuffer.sizeCopied;
+            if (length + size > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, length + size));
+            }
+            System.arraycopy(mPrepareBuffer.data, 0, names, length, size);
+            length += size;
+            nameEnds[i] = length;
+            breedIds[i] = cursor.isNull(breedIdColumnIndex) ? PetTextLayoutCache.NO_BREED
+                    : cursor.getLong(breedIdColumnIndex);
+            i++;
+        }
+        // Rows the cursor couldn't move to keep an empty name.
+        for (; i < count; i++) {
+            nameEnds[i] = length;
+        }
+        mPreparedFrom = from;
+        mPreparedTo = to;
+        mTextLayouts.prepare(ids, names, nameEnds, breedIds);
+    }
 
-        // Update the TextViews with the attributes for the current pet.
-        nameTextView.setText(petName);
-        summaryTextView.setText(petBreed);
+    // Returns whether the row at the given position is neither visible, so already bound, nor
+    // already asked for.
+    private boolean isNewlyPrepared(int position, int firstVisibleItem, int visibleItemCount) {
+        boolean visible = position >= firstVisibleItem
+                && position < firstVisibleItem + visibleItemCount;
+        boolean prepared = position >= mPreparedFrom && position < mPreparedTo;
+        return !visible && !prepared;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+package com.example.android.pets;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.example.android.pets.data.MemoryBudgetManager;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads single pets speculatively, before the user has finished tapping them.
+ *
+ * The catalog calls {@link #prefetch(long)} as soon as a row is pressed, and the editor it opens
+ * calls {@link #take(long)} to fill its fields right away, instead of waiting for its own query
+ * that only starts after the activity transition. Prefetched rows are dropped when any pet
+ * changes and after a few seconds, so the editor never shows data older than its own loader
+ * would. All methods must be called from the UI thread.
+ */
+
+public class PetPrefetcher implements MemoryBudgetManager.Trimmable {
+
+    public static final String LOG_TAG = PetPrefetcher.class.getSimpleName();
+
+    // Columns of a prefetched pet, the same ones the editor loads.
+    public static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO};
+
+    // A row not taken within this time is no longer worth keeping, as the tap didn't happen.
+    private static final long MAX_AGE_MILLIS = 5000;
+
+    // Presses come one at a time, so only a few rows are ever in flight or waiting.
+    private static final int MAX_ROWS = 4;
+
+    // Rough size of a prefetched row, for the footprint report.
+    private static final int ESTIMATED_ROW_BYTES = 512;
+
+    private static PetPrefetcher sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    private final Handler mMainHandler;
+
+    private final Handler mHandler;
+
+    // Prefetched rows and the rows being fetched, by pet ID, oldest first. Only touched on the UI
+    // thread.
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > MAX_ROWS;
+        }
+    };
+
+    // Returns the prefetcher shared by the whole app.
+    public static synchronized PetPrefetcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetPrefetcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetPrefetcher(Context context) {
+        mContentResolver = context.getContentResolver();
+        mMainHandler = new Handler(context.getMainLooper());
+
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // Any change may make a prefetched row stale, and rows are cheap to fetch again.
+        mContentResolver.registerContentObserver(PetEntry.CONTENT_URI, true,
+                new ContentObserver(mMainHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+
+        MemoryBudgetManager.getInstance(context).register(LOG_TAG, this);
+    }
+
+    // Start loading the pet with the given ID in the background, unless it is already loaded or
+    // being loaded.
+    public void prefetch(final long id) {
+        Entry existing = mEntries.get(id);
+        if (existing != null && !existing.isExpired()) {
+            return;
+        }
+        // Drop the expired entry, so the new one counts as the newest.
+        mEntries.remove(id);
+
+        final Entry entry = new Entry();
+        mEntries.put(id, entry);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Object[] row = queryRow(id);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Ignore the result if the entry was dropped meanwhile, e.g. because the
+                        // pet changed while it was being loaded.
+                        if (mEntries.get(id) == entry) {
+                            entry.mRow = row;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the prefetched pet with the given ID and forgets it.
+     *
+     * @return a cursor with the PROJECTION columns and one row, or null if the pet hasn't been
+     * prefetched or hasn't finished loading yet
+     */
+    public Cursor take(long id) {
+        Entry entry = mEntries.get(id);
+        if (entry == null || entry.mRow == null || entry.isExpired()) {
+            return null;
+        }
+        mEntries.remove(id);
+
+        MatrixCursor cursor = new MatrixCursor(PROJECTION, 1);
+        cursor.addRow(entry.mRow);
+        return cursor;
+    }
+
+    // Forget all prefetched pets.
+    public void clear() {
+        mEntries.clear();
+    }
+
+    // Prefetched rows are only a head start, so drop them at the first sign of pressure.
+    @Override
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+    }
+
+    @Override
+    public long getFootprintBytes() {
+        return (long) mEntries.size() * ESTIMATED_ROW_BYTES;
+    }
+
+    // Reads the row of the pet with the given ID, or returns null if there is none. Runs on the
+    // background thread.
+    private Object[] queryRow(long id) {
+        Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+        Cursor cursor = mContentResolver.query(uri, PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Object[] row = new Object[PROJECTION.length];
+            for (int i = 0; i < row.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_NULL:
+                        row[i] = null;
+                        break;
+                    default:
+                        row[i] = cursor.getString(i);
+                        break;
+                }
+            }
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // A prefetched row, or one still being fetched while mRow is null.
+    private static class Entry {
+        final long mCreated = SystemClock.elapsedRealtime();
+        Object[] mRow;
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - mCreated > MAX_AGE_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.support.v4.view.AsyncLayoutInflater;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.ArrayDeque;
+
+/**
+ * Inflates catalog rows ahead of time, so the list doesn't inflate them while it first fills.
+ *
+ * As soon as the list exists, enough rows to fill the screen are inflated on a background thread
+ * and pooled, which is done long before the first pets are loaded. Once filled, the list recycles
+ * its rows, so the pool isn't refilled. A row asked for while the pool is empty is inflated on
+ * the spot. All methods must be called from the UI thread.
+ */
+
+public class PetRowInflater {
+
+    // Rows beyond one screen, as the list also lays out the partly visible rows at both ends.
+    private static final int EXTRA_ROWS = 2;
+
+    private final int mLayoutId;
+
+    private final ArrayDeque<View> mRows = new ArrayDeque<>();
+
+    private boolean mClosed;
+
+    /**
+     * Starts inflating enough rows of the given layout to fill the screen.
+     *
+     * @param context   of the list
+     * @param layoutId  of the rows
+     * @param parent    list the rows are for
+     * @param rowHeight expected height of a row, in pixels
+     */
+    public PetRowInflater(Context context, int layoutId, ViewGroup parent, int rowHeight) {
+        mLayoutId = layoutId;
+
+        int count = context.getResources().getDisplayMetrics().heightPixels
+                / Math.max(1, rowHeight) + EXTRA_ROWS;
+        AsyncLayoutInflater inflater = new AsyncLayoutInflater(context);
+        AsyncLayoutInflater.OnInflateFinishedListener listener =
+                new AsyncLayoutInflater.OnInflateFinishedListener() {
+                    @Override
+                    public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                        if (!mClosed) {
+                            mRows.add(view);
+                        }
+                    }
+                };
+        for (int i = 0; i < count; i++) {
+            inflater.inflate(layoutId, parent, listener);
+        }
+    }
+
+    // Returns a pooled row, or inflates one if none is left.
+    public View obtain(ViewGroup parent) {
+        View row = mRows.poll();
+        if (row != null) {
+            return row;
+        }
+        return LayoutInflater.from(parent.getContext()).inflate(mLayoutId, parent, false);
+    }
+
+    // Drop the pooled rows, and the rows still being inflated once they are done.
+    public void close() {
+        mClosed = true;
+        mRows.clear();
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.text.Layout;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Shows a text layout built beforehand, see {@link PetTextLayoutCache}.
+ *
+ * Unlike a TextView, this view never measures or lays out text itself, so setting its text costs
+ * nothing on the UI thread. It takes the width its parent gives it and the height of its layout,
+ * and reports its text width, so the layouts can be built to fit it.
+ */
+
+public class PetRowTextView extends View {
+
+    /**
+     * Listener for changes of the width available to the text.
+     */
+    public interface OnTextWidthChangedListener {
+        void onTextWidthChanged(PetRowTextView view, int width);
+    }
+
+    private Layout mLayout;
+
+    private OnTextWidthChangedListener mListener;
+
+    public PetRowTextView(Context context) {
+        super(context);
+    }
+
+    public PetRowTextView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public PetRowTextView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    // Show the given layout. Only lays the view out again if the height changes.
+    public void setLayout(Layout layout) {
+        if (layout == mLayout) {
+            return;
+        }
+        int oldHeight = mLayout == null ? -1 : mLayout.getHeight();
+        mLayout = layout;
+        if (layout == null || layout.getHeight() != oldHeight) {
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    public Layout getLayout() {
+        return mLayout;
+    }
+
+    public void setOnTextWidthChangedListener(OnTextWidthChangedListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int height = getPaddingTop() + getPaddingBottom()
+                + (mLayout == null ? 0 : mLayout.getHeight());
+        setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec),
+                resolveSize(Math.max(height, getSuggestedMinimumHeight()), heightMeasureSpec));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        int width = w - getPaddingLeft() - getPaddingRight();
+        if (w != oldw && width > 0 && mListener != null) {
+            mListener.onTextWidthChanged(this, width);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLayout == null) {
+            return;
+        }
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mLayout.draw(canvas);
+        canvas.restore();
+    }
+
+    // Expose the text to accessibility services, as a TextView would.
+    @Override
+    public void onPopulateAccessibilityEvent(AccessibilityEvent event) {
+        super.onPopulateAccessibilityEvent(event);
+        if (mLayout != null) {
+            event.getText().add(mLayout.getText());
+        }
+    }
+
+    @Override
+    public void onInitializeAccessibilityNodeInfo(AccessibilityNodeInfo info) {
+        super.onInitializeAccessibilityNodeInfo(info);
+        if (mLayout != null) {
+            info.setText(mLayout.getText());
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.CharArrayBuffer;
+import android.graphics.Picture;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.v4.content.ContextCompat;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.example.android.pets.data.BreedDictionary;
+
+/**
+ * Builds the text layouts of the catalog rows, mostly ahead of time on a background thread.
+ *
+ * Measuring and laying out text is the costliest part of binding a row. The adapter calls
+ * {@link #prepare(long[], char[], int[], long[])} with the rows about to scroll into view, and
+ * their layouts are built in the background: a single line ellipsized to the text width, drawn
+ * once into a throwaway Picture so the glyphs are in the font cache as well. Binding then only
+ * looks the layouts up. A row whose layout isn't ready yet is laid out on the spot, like a
+ * TextView would.
+ *
+ * Name layouts are kept by pet ID and checked against the name they were built from, so a
+ * renamed pet is never shown with its old name. Breed layouts are kept by breed ID, as many pets
+ * share a breed. The paints are set up once and only read afterwards, so layouts built on either
+ * thread can be drawn on the UI thread.
+ */
+
+public class PetTextLayoutCache {
+
+    public static final String LOG_TAG = PetTextLayoutCache.class.getSimpleName();
+
+    // Breed ID to pass for a pet without a breed.
+    public static final long NO_BREED = -1;
+
+    // Name layouts cover the rows around the visible ones; there are far fewer breeds.
+    private static final int MAX_NAME_LAYOUTS = 256;
+    private static final int MAX_BREED_LAYOUTS = 64;
+
+    private final TextPaint mNamePaint;
+
+    private final TextPaint mSummaryPaint;
+
+    // Shown for pets whose breed is unknown.
+    private final String mUnknownBreed;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    // Both caches are thread safe, and filled from both threads.
+    private final LruCache<Long, NameLayout> mNameLayouts = new LruCache<>(MAX_NAME_LAYOUTS);
+    private final LruCache<Long, Layout> mBreedLayouts = new LruCache<>(MAX_BREED_LAYOUTS);
+
+    // Width the text is laid out to. Until the rows are first measured, this is the width of the
+    // screen, which is too wide but never cuts text short.
+    private volatile int mWidth;
+
+    public PetTextLayoutCache(Context context) {
+        Resources res = context.getResources();
+        // The same look as the list item TextViews had.
+        mNamePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        mNamePaint.density = res.getDisplayMetrics().density;
+        mNamePaint.setTextSize(res.getDimension(R.dimen.list_item_name_text_size));
+        mNamePaint.setColor(ContextCompat.getColor(context, R.color.listItemName));
+        mNamePaint.setTypeface(Typeface.create("sans-serif-medium", Typeface.NORMAL));
+
+        mSummaryPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        mSummaryPaint.density = res.getDisplayMetrics().density;
+        mSummaryPaint.setTextSize(res.getDimension(R.dimen.list_item_summary_text_size));
+        mSummaryPaint.setColor(ContextCompat.getColor(context, R.color.listItemSummary));
+        mSummaryPaint.setTypeface(Typeface.create("sans-serif", Typeface.NORMAL));
+
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+        mWidth = res.getDisplayMetrics().widthPixels;
+
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Sets the width the rows lay their text out to, and drops the layouts of any other width.
+     *
+     * @return whether the width changed, in which case bound rows should be bound again
+     */
+    public boolean setWidth(int width) {
+        if (width <= 0 || width == mWidth) {
+            return false;
+        }
+        mWidth = width;
+        mHandler.removeCallbacksAndMessages(null);
+        mNameLayouts.evictAll();
+        mBreedLayouts.evictAll();
+        return true;
+    }
+
+    /**
+     * Builds the layouts of the given rows in the background, unless they are cached. Call from
+     * the UI thread. The names are passed as chars, so the caller doesn't need a String per row;
+     * the arrays must not be changed afterwards.
+     *
+     * @param ids      of the pets
+     * @param names    of the pets, one after another
+     * @param nameEnds end of the name of each pet in names
+     * @param breedIds of the pets, NO_BREED for pets without one
+     */
+    public void prepare(final long[] ids, final char[] names, final int[] nameEnds,
+                        final long[] breedIds) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int width = mWidth;
+                for (int i = 0; i < ids.length; i++) {
+                    int start = i == 0 ? 0 : nameEnds[i - 1];
+                    int length = nameEnds[i] - start;
+                    NameLayout cached = mNameLayouts.get(ids[i]);
+                    if (cached == null || cached.mWidth != width
+                            || !contentEquals(cached.mName, names, start, length)) {
+                        String name = new String(names, start, length);
+                        NameLayout built = new NameLayout(name, width,
+                                buildLayout(name, mNamePaint, width));
+                        warm(built.mLayout);
+                        mNameLayouts.put(ids[i], built);
+                    }
+                    Layout breed = mBreedLayouts.get(breedIds[i]);
+                    // A breed the dictionary doesn't know yet is left to getBreedLayout().
+                    String breedName = getBreedName(breedIds[i]);
+                    if ((breed == null || breed.getWidth() != width) && breedName != null) {
+                        breed = buildLayout(breedName, mSummaryPaint, width);
+                        warm(breed);
+                        mBreedLayouts.put(breedIds[i], breed);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the layout of the given pet name, built ahead of time if possible. Call from the UI
+     * thread.
+     *
+     * @param id   of the pet
+     * @param name of the pet, as copied from the cursor
+     */
+    public Layout getNameLayout(long id, CharArrayBuffer name) {
+        int width = mWidth;
+        NameLayout cached = mNameLayouts.get(id);
+        if (cached != null && cached.mWidth == width
+                && contentEquals(cached.mName, name.data, 0, name.sizeCopied)) {
+            return cached.mLayout;
+        }
+        String text = new String(name.data, 0, name.sizeCopied);
+        NameLayout built = new NameLayout(text, width, buildLayout(text, mNamePaint, width));
+        mNameLayouts.put(id, built);
+        return built.mLayout;
+    }
+
+    /**
+     * Returns the layout of the given breed, built ahead of time if possible. Call from the UI
+     * thread.
+     *
+     * @param breedId of the pet, NO_BREED for a pet without one
+     */
+    public Layout getBreedLayout(long breedId) {
+        int width = mWidth;
+        Layout cached = mBreedLayouts.get(breedId);
+        if (cached != null && cached.getWidth() == width) {
+            return cached;
+        }
+        // Until the dictionary knows the breed, show it as unknown without caching that.
+        String name = getBreedName(breedId);
+        if (name == null) {
+            return buildLayout(mUnknownBreed, mSummaryPaint, width);
+        }
+        Layout built = buildLayout(name, mSummaryPaint, width);
+        mBreedLayouts.put(breedId, built);
+        return built;
+    }
+
+    // Drop all layouts and stop the background thread. The cache can't be used afterwards.
+    public void close() {
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+        mNameLayouts.evictAll();
+        mBreedLayouts.evictAll();
+    }
+
+    // Returns the name of the given breed, or the unknown breed text for a pet without one so the
+    // row isn't blank. Returns null if the breed isn't in the dictionary yet.
+    private String getBreedName(long breedId) {
+        if (breedId == NO_BREED) {
+            return mUnknownBreed;
+        }
+        String name = BreedDictionary.getInstance().getName(breedId);
+        if (name == null) {
+            return null;
+        }
+        return name.isEmpty() ? mUnknownBreed : name;
+    }
+
+    // Returns a single line layout of the text, ellipsized at the end if it is wider than width.
+    private static Layout buildLayout(String text, TextPaint paint, int width) {
+        CharSequence line = TextUtils.ellipsize(text, paint, width, TextUtils.TruncateAt.END);
+        return new StaticLayout(line, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+    }
+
+    // Draw the layout where nobody sees it, so its glyphs are rendered and cached by the time
+    // the row is drawn on the UI thread.
+    private static void warm(Layout layout) {
+        Picture picture = new Picture();
+        layout.draw(picture.beginRecording(layout.getWidth(), layout.getHeight()));
+        picture.endRecording();
+    }
+
+    // Returns whether the string holds exactly the given range of chars.
+    private static boolean contentEquals(String string, char[] chars, int start, int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A name layout and the name and width it was built for.
+    private static class NameLayout {
+        final String mName;
+        final int mWidth;
+        final Layout mLayout;
+
+        NameLayout(String name, int width, Layout layout) {
+            mName = name;
+            mWidth = width;
+            mLayout = layout;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.example.android.pets;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.MemoryBudgetManager;
+import com.example.android.pets.data.PetPhotoStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads square pet photo thumbnails into ImageViews in the background.
+ *
+ * Thumbnails are cached in two tiers: decoded bitmaps in a memory LRU cache limited by byte size,
+ * and small JPEG files in a disk cache, so a photo is only decoded at full size once. The disk
+ * cache is kept under a byte limit by deleting the least recently used files, and PetPhotoStore
+ * deletes the thumbnail of a photo along with the photo. Each file is written under a temporary
+ * name and renamed into place, so a process killed mid-write never leaves a truncated
+ * thumbnail behind. A load is
+ * tied to its ImageView; starting another load on the same view, or calling cancel(), cancels it,
+ * so a recycled list row never shows the photo of the pet it was previously bound to.
+ */
+
+public class PetThumbnailLoader implements MemoryBudgetManager.Trimmable {
+
+    public static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName();
+
+    // Bytes the disk cache is kept under. A thumbnail takes a few KB, so this holds thousands.
+    private static final long MAX_DISK_CACHE_BYTES = 8 * 1024 * 1024;
+
+    // Suffix of thumbnails being written.
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Share of the app's memory class given to the memory cache, normally and on low-RAM devices.
+    private static final int MEMORY_CACHE_FRACTION = 8;
+    private static final int LOW_RAM_MEMORY_CACHE_FRACTION = 16;
+
+    private static final int JPEG_QUALITY = 80;
+
+    private static PetThumbnailLoader sInstance;
+
+    private final Context mContext;
+
+    // Edge length of the thumbnails in pixels.
+    private final int mSize;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    private final File mDiskCacheDir;
+
+    // Bytes in the disk cache, or -1 until it has been measured. Guarded by mDiskCacheDir.
+    private long mDiskCacheBytes = -1;
+
+    private final ExecutorService mExecutor;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Returns the loader shared by the whole app.
+    public static synchronized PetThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetThumbnailLoader(Context context) {
+        mContext = context;
+        mSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        mDiskCacheDir = PetPhotoStore.getThumbnailDir(context);
+
+        MemoryBudgetManager memoryBudget = MemoryBudgetManager.getInstance(context);
+        int cacheBytes = (int) (memoryBudget.getMemoryClassBytes() / (memoryBudget.isLowRamDevice()
+                ? LOW_RAM_MEMORY_CACHE_FRACTION : MEMORY_CACHE_FRACTION));
+        mMemoryCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        // Two threads keep the disk busy without starving the UI thread of CPU.
+        mExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+
+        memoryBudget.register(LOG_TAG, this);
+    }
+
+    /**
+     * Show the thumbnail of the given photo in the given view, or the placeholder if there is no
+     * photo. A cached thumbnail is shown right away, otherwise it is loaded in the background.
+     *
+     * @param photo file name of the photo, as stored in PetEntry.COLUMN_PET_PHOTO, or null
+     * @param view  to show the thumbnail in
+     */
+    public void load(String photo, ImageView view) {
+        cancel(view);
+
+        if (photo == null) {
+            view.setImageResource(R.drawable.ic_photo_placeholder);
+            return;
+        }
+
+        Bitmap cached = mMemoryCache.get(photo);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageResource(R.drawable.ic_photo_placeholder);
+        LoadTask task = new LoadTask(photo, view);
+        task.mFuture = mExecutor.submit(task);
+        view.setTag(R.id.thumbnail_task, task);
+    }
+
+    // Cancel the load into the given view, if one is running.
+    public void cancel(ImageView view) {
+        LoadTask task = (LoadTask) view.getTag(R.id.thumbnail_task);
+        if (task != null) {
+            task.mFuture.cancel(false);
+            view.setTag(R.id.thumbnail_task, null);
+        }
+    }
+
+    // Drop the cached bitmap of the given photo, e.g. after the photo was replaced.
+    public void evict(String photo) {
+        mMemoryCache.remove(photo);
+        PetPhotoStore.getThumbnailFile(mContext, photo).delete();
+    }
+
+    // Shrink the memory cache according to the given ComponentCallbacks2 trim level.
+    @Override
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mMemoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    // Bytes currently held by the memory cache.
+    @Override
+    public long getFootprintBytes() {
+        return mMemoryCache.size();
+    }
+
+    // Returns the thumbnail of the given photo from the disk cache, or decodes it from the photo
+    // and adds it to the disk cache. Runs on a background thread.
+    private Bitmap loadThumbnail(String photo) {
+        File cacheFile = PetPhotoStore.getThumbnailFile(mContext, photo);
+        if (cacheFile.isFile()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(cacheFile.getPath());
+            if (bitmap != null) {
+                // Mark it as recently used, so trimming the cache keeps it.
+                cacheFile.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        Bitmap source;
+        try {
+            source = PetPhotoStore.decodeSampled(mContext,
+                    Uri.fromFile(PetPhotoStore.getPhotoFile(mContext, photo)), mSize);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read photo " + photo, e);
+            return null;
+        }
+        if (source == null) {
+            return null;
+        }
+
+        // Crop to a square and scale to the exact thumbnail size.
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(source, mSize, mSize,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+
+        if (mDiskCacheDir.isDirectory() || mDiskCacheDir.mkdirs()) {
+            writeToDiskCache(photo, thumbnail, cacheFile);
+        }
+        return thumbnail;
+    }
+
+    // Write the thumbnail to the given cache file, through a temporary file so the cache file is
+    // either complete or missing. Then trim the cache if it grew too large.
+    private void writeToDiskCache(String photo, Bitmap thumbnail, File cacheFile) {
+        File tempFile = null;
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            // Two views may load the same photo at once, so each write gets its own file.
+            tempFile = File.createTempFile(photo, TEMP_SUFFIX, mDiskCacheDir);
+            out = new FileOutputStream(tempFile);
+            written = thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to cache thumbnail " + photo, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // The data may not all have reached the file.
+                    written = false;
+                }
+            }
+        }
+        if (tempFile == null) {
+            return;
+        }
+        if (!written || !tempFile.renameTo(cacheFile)) {
+            tempFile.delete();
+            return;
+        }
+        onDiskCacheWritten(cacheFile.length());
+    }
+
+    // Account for a file of the given size added to the disk cache, and delete the least recently
+    // used files once the cache is over its limit, down to three quarters of it.
+    private void onDiskCacheWritten(long bytes) {
+        synchronized (mDiskCacheDir) {
+            if (mDiskCacheBytes == -1) {
+                // The first write measures the cache, including the file just written.
+                mDiskCacheBytes = 0;
+                File[] files = mDiskCacheDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        mDiskCacheBytes += file.length();
+                    }
+                }
+            } else {
+                mDiskCacheBytes += bytes;
+            }
+            if (mDiskCacheBytes <= MAX_DISK_CACHE_BYTES) {
+                return;
+            }
+
+            File[] files = mDiskCacheDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            final long[] lastModified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            // Read the times once, as they may change while sorting. Oldest first.
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long difference = lastModified[a] - lastModified[b];
+                    return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+                }
+            });
+
+            // Deleted photos delete their thumbnails too, so the total is measured again here.
+            long total = 0;
+            for (File file : files) {
+                total += file.length();
+            }
+            for (int i = 0; i < order.length && total > MAX_DISK_CACHE_BYTES * 3 / 4; i++) {
+                File file = files[order[i]];
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                }
+            }
+            mDiskCacheBytes = total;
+        }
+    }
+
+    // Loads one thumbnail in the background and shows it if its view still wants it.
+    private class LoadTask implements Runnable {
+        final String mPhoto;
+        final ImageView mView;
+        Future<?> mFuture;
+
+        LoadTask(String photo, ImageView view) {
+            mPhoto = photo;
+            mView = view;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap bitmap = loadThumbnail(mPhoto);
+            if (bitmap == null) {
+                return;
+            }
+            mMemoryCache.put(mPhoto, bitmap);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The view may have been recycled for another pet in the meantime.
+                    if (mView.getTag(R.id.thumbnail_task) == LoadTask.this) {
+                        mView.setTag(R.id.thumbnail_task, null);
+                        mView.setImageBitmap(bitmap);
+                    }
+                }
+            });
+        }
+    }
+}
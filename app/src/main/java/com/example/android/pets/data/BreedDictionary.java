@@ -0,0 +1,189 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LongSparseArray;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the breeds lookup table.
+ *
+ * Every breed name is held as a single String instance, so the catalog can bind the breed of any
+ * number of pets without allocating a String per row. PetProvider fills the dictionary before it
+ * returns pets, and adds each new breed as it is written, so every breed ID found in a pets
+ * cursor can be resolved here without touching the database.
+ *
+ * Lookups never block: they read an immutable snapshot, which is replaced by a copy whenever
+ * breeds are added. The database is only read and written outside of the lock, so the catalog
+ * binding on the UI thread never waits behind disk I/O or a provider transaction.
+ *
+ * A breed added inside a transaction is held back until the provider reports how the
+ * transaction ended: if it rolled back, the breed row is gone and its ID may be handed out again
+ * to another breed, so the entry is dropped instead of published.
+ */
+
+public class BreedDictionary {
+
+    // Dictionary for the app's shelter database.
+    private static BreedDictionary sInstance;
+
+    // Current contents. Never modified once published.
+    private volatile Snapshot mSnapshot = new Snapshot();
+
+    // Whether the whole breeds table has been read.
+    private volatile boolean mLoaded;
+
+    // IDs of the breeds added inside the transaction in progress on each thread, by name. Only
+    // the thread running a transaction sees its uncommitted rows, so each keeps its own.
+    private final ThreadLocal<HashMap<String, Long>> mPending = new ThreadLocal<>();
+
+    // Returns the dictionary of the app's shelter database.
+    public static synchronized BreedDictionary getInstance() {
+        if (sInstance == null) {
+            sInstance = new BreedDictionary();
+        }
+        return sInstance;
+    }
+
+    // Returns the name of the breed with the given ID, or null if the ID is unknown. The same
+    // String instance is returned for every call with the same ID.
+    public String getName(long id) {
+        return mSnapshot.names.get(id);
+    }
+
+    // Number of breeds held in memory.
+    public int size() {
+        return mSnapshot.names.size();
+    }
+
+    // Read the whole breeds table, unless that has been done already.
+    void ensureLoaded(SQLiteDatabase database) {
+        if (mLoaded) {
+            return;
+        }
+
+        LongSparseArray<String> names = new LongSparseArray<>();
+        Cursor cursor = database.query(BreedEntry.TABLE_NAME,
+                new String[]{BreedEntry._ID, BreedEntry.COLUMN_BREED_NAME},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        publish(names);
+        mLoaded = true;
+    }
+
+    // Returns the ID of the breed with the given name, adding the breed to the breeds table if
+    // it isn't there yet. If the database is in a transaction, the caller must report its end
+    // with endTransaction().
+    long getOrCreateId(SQLiteDatabase database, String name) {
+        Long id = mSnapshot.ids.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        boolean inTransaction = database.inTransaction();
+        HashMap<String, Long> pending = null;
+        if (inTransaction) {
+            pending = mPending.get();
+            if (pending == null) {
+                pending = new HashMap<>();
+                mPending.set(pending);
+            }
+            id = pending.get(name);
+            if (id != null) {
+                return id;
+            }
+        }
+
+        // Look the breed up first, in case it was written before the dictionary was loaded.
+        long newId = queryId(database, name);
+        if (newId == -1) {
+            ContentValues values = new ContentValues();
+            values.put(BreedEntry.COLUMN_BREED_NAME, name);
+            newId = database.insertWithOnConflict(BreedEntry.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            // Another thread may have added the same breed in the meantime.
+            if (newId == -1) {
+                newId = queryId(database, name);
+            }
+        }
+
+        if (inTransaction) {
+            pending.put(name, newId);
+        } else {
+            LongSparseArray<String> names = new LongSparseArray<>(1);
+            names.put(newId, name);
+            publish(names);
+        }
+        return newId;
+    }
+
+    // Publish the breeds added inside the calling thread's transaction that just ended if it
+    // committed, or drop them if it rolled back.
+    void endTransaction(boolean successful) {
+        HashMap<String, Long> pending = mPending.get();
+        mPending.remove();
+        if (!successful || pending == null || pending.isEmpty()) {
+            return;
+        }
+        LongSparseArray<String> added = new LongSparseArray<>(pending.size());
+        for (Map.Entry<String, Long> entry : pending.entrySet()) {
+            added.put(entry.getValue(), entry.getKey());
+        }
+        publish(added);
+    }
+
+    // Returns the ID of the breed with the given name in the breeds table, or -1 if there is none.
+    private static long queryId(SQLiteDatabase database, String name) {
+        Cursor cursor = database.query(BreedEntry.TABLE_NAME, new String[]{BreedEntry._ID},
+                BreedEntry.COLUMN_BREED_NAME + "=?", new String[]{name}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Publish a copy of the current snapshot with the given breeds added. Names already in the
+    // dictionary keep their instance.
+    private synchronized void publish(LongSparseArray<String> added) {
+        Snapshot current = mSnapshot;
+        LongSparseArray<String> names = current.names.clone();
+        HashMap<String, Long> ids = new HashMap<>(current.ids);
+        for (int i = 0; i < added.size(); i++) {
+            long id = added.keyAt(i);
+            if (names.get(id) == null) {
+                String name = added.valueAt(i);
+                names.put(id, name);
+                ids.put(name, id);
+            }
+        }
+        mSnapshot = new Snapshot(names, ids);
+    }
+
+    // Breed names by ID, and breed IDs by name.
+    private static final class Snapshot {
+        final LongSparseArray<String> names;
+        final HashMap<String, Long> ids;
+
+        Snapshot() {
+            this(new LongSparseArray<String>(), new HashMap<String, Long>());
+        }
+
+        Snapshot(LongSparseArray<String> names, HashMap<String, Long> ids) {
+            this.names = names;
+            this.ids = ids;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Read-only cursor over the narrow pet rows of the catalog, packed into primitive arrays.
+ *
+ * A SQLiteCursor keeps its rows in a CursorWindow, which tags every cell with its type, and every
+ * getString() allocates a new String. This cursor instead keeps each integer column in a long
+ * array and the text of all rows in one UTF-8 byte buffer. Text is only decoded when it is read,
+ * and {@link #copyStringToBuffer(int, CharArrayBuffer)} decodes it straight into the caller's
+ * char buffer, so binding list items while scrolling allocates nothing.
+ *
+ * Only the columns of {@link #COLUMNS} are supported; see {@link #supports(String[])}.
+ */
+
+final class CompactPetCursor extends AbstractCursor {
+
+    // Columns this cursor can hold, and whether each of them is an integer column.
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_BREED_ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_PHOTO};
+    private static final boolean[] INTEGER_COLUMNS = {true, true, false, false};
+
+    // Above this many rows, packing all of them up front costs more than the cursor window
+    // saves, as a window only ever holds the rows around the visible ones.
+    private static final int MAX_ROWS = 20000;
+
+    private final String[] mColumnNames;
+
+    private final int mCount;
+
+    // Values of the integer columns, and which of them are null. Null for text columns.
+    private final long[][] mLongs;
+    private final BitSet[] mNulls;
+
+    // Start and length in mText of the values of the text columns, with a length of -1 for null.
+    // Null for integer columns.
+    private final int[][] mTextStarts;
+    private final int[][] mTextLengths;
+
+    // UTF-8 text of all rows.
+    private final byte[] mText;
+
+    // Returns whether a cursor with the given projection can be compacted: every column is one of
+    // COLUMNS, and none is repeated.
+    static boolean supports(String[] projection) {
+        if (projection == null || projection.length == 0) {
+            return false;
+        }
+        for (int i = 0; i < projection.length; i++) {
+            if (indexOfColumn(projection[i]) == -1) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (projection[i].equals(projection[j])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a compact copy of the given cursor, whose projection must be supported, and closes
+     * the given cursor. If the cursor has too many rows to be worth copying, it is returned as it
+     * is instead. Call on a background thread, as this reads every row.
+     */
+    static Cursor compact(Cursor source) {
+        if (source.getCount() > MAX_ROWS) {
+            return source;
+        }
+        try {
+            return new CompactPetCursor(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    private CompactPetCursor(Cursor source) {
+        mColumnNames = source.getColumnNames();
+        mCount = source.getCount();
+
+        int columnCount = mColumnNames.length;
+        mLongs = new long[columnCount][];
+        mNulls = new BitSet[columnCount];
+        mTextStarts = new int[columnCount][];
+        mTextLengths = new int[columnCount][];
+        for (int column = 0; column < columnCount; column++) {
+            if (INTEGER_COLUMNS[indexOfColumn(mColumnNames[column])]) {
+                mLongs[column] = new long[mCount];
+                mNulls[column] = new BitSet();
+            } else {
+                mTextStarts[column] = new int[mCount];
+                mTextLengths[column] = new int[mCount];
+            }
+        }
+
+        // Pet names are short, so start with a few bytes per row and grow as needed.
+        byte[] text = new byte[Math.max(64, mCount * 8)];
+        int size = 0;
+        for (int row = 0; source.moveToPosition(row); row++) {
+            for (int column = 0; column < columnCount; column++) {
+                boolean isNull = source.isNull(column);
+                if (mLongs[column] != null) {
+                    if (isNull) {
+                        mNulls[column].set(row);
+                    } else {
+                        mLongs[column][row] = source.getLong(column);
+                    }
+                    continue;
+                }
+
+                if (isNull) {
+                    mTextLengths[column][row] = -1;
+                    continue;
+                }
+                String value = source.getString(column);
+                // A char takes at most 3 bytes in UTF-8; a surrogate pair 4 bytes for 2 chars.
+                if (size + value.length() * 3 > text.length) {
+                    text = Arrays.copyOf(text, Math.max(text.length * 2,
+                            size + value.length() * 3));
+                }
+                int end = encode(value, text, size);
+                mTextStarts[column][row] = size;
+                mTextLengths[column][row] = end - size;
+                size = end;
+            }
+        }
+        mText = Arrays.copyOf(text, size);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        if (isNull(column)) {
+            return Cursor.FIELD_TYPE_NULL;
+        }
+        return mLongs[column] != null ? Cursor.FIELD_TYPE_INTEGER : Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        checkPosition();
+        if (mLongs[column] != null) {
+            return mNulls[column].get(getPosition());
+        }
+        return mTextLengths[column][getPosition()] == -1;
+    }
+
+    @Override
+    public String getString(int column) {
+        if (isNull(column)) {
+            return null;
+        }
+        if (mLongs[column] != null) {
+            return Long.toString(mLongs[column][getPosition()]);
+        }
+        int row = getPosition();
+        int length = mTextLengths[column][row];
+        char[] chars = new char[length];
+        return new String(chars, 0, decode(mText, mTextStarts[column][row], length, chars));
+    }
+
+    // Decodes the text straight into the given buffer, reusing its array when it is large enough.
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        if (mLongs[column] != null) {
+            super.copyStringToBuffer(column, buffer);
+            return;
+        }
+        if (isNull(column)) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        // Every UTF-8 byte decodes to at most one char.
+        int row = getPosition();
+        int length = mTextLengths[column][row];
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        buffer.sizeCopied = decode(mText, mTextStarts[column][row], length, buffer.data);
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (isNull(column)) {
+            return 0;
+        }
+        if (mLongs[column] != null) {
+            return mLongs[column][getPosition()];
+        }
+        // Like SQLite, text that isn't a number reads as 0.
+        try {
+            return Long.parseLong(getString(column));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    // Returns the index in COLUMNS of the given column name, or -1 if it isn't supported.
+    private static int indexOfColumn(String name) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Writes the UTF-8 encoding of the given string into the buffer at the given offset, which
+    // must have room for 3 bytes per char. Returns the offset after the last byte written.
+    private static int encode(String value, byte[] buffer, int offset) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[offset++] = (byte) (0xC0 | (c >> 6));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                // A lone surrogate is kept as it is, so the text decodes back unchanged.
+                buffer[offset++] = (byte) (0xE0 | (c >> 12));
+                buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    // Decodes the given bytes written by encode() into the given chars. Returns the number of
+    // chars decoded.
+    private static int decode(byte[] bytes, int offset, int length, char[] chars) {
+        int end = offset + length;
+        int count = 0;
+        while (offset < end) {
+            int b = bytes[offset++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[offset++] & 0x3F));
+            } else if (b < 0xF0) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[offset++] & 0x3F) << 6)
+                        | (bytes[offset++] & 0x3F));
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((bytes[offset++] & 0x3F) << 12)
+                        | ((bytes[offset++] & 0x3F) << 6) | (bytes[offset++] & 0x3F);
+                codePoint -= 0x10000;
+                chars[count++] = (char) (0xD800 + (codePoint >> 10));
+                chars[count++] = (char) (0xDC00 + (codePoint & 0x3FF));
+            }
+        }
+        return count;
+    }
+}
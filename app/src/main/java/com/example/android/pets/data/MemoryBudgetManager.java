@@ -0,0 +1,138 @@
+package com.example.android.pets.data;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Central point for giving memory back under pressure.
+ *
+ * Caches and other holders of memory that can be rebuilt register here as a {@link Trimmable}.
+ * When the system reports memory pressure (onTrimMemory, onLowMemory), every registered trimmable
+ * is asked to shrink according to the trim level, and the footprint before and after is logged.
+ * Holders should also size themselves with {@link #isLowRamDevice()} in mind, so a low-RAM
+ * device such as a shelter kiosk starts with smaller caches in the first place.
+ */
+
+public class MemoryBudgetManager implements ComponentCallbacks2 {
+
+    public static final String LOG_TAG = MemoryBudgetManager.class.getSimpleName();
+
+    /**
+     * Something that holds memory it can give back.
+     */
+    public interface Trimmable {
+        // Release memory according to the given ComponentCallbacks2 trim level. Called on the
+        // main thread.
+        void trimMemory(int level);
+
+        // Approximate number of bytes currently held.
+        long getFootprintBytes();
+    }
+
+    private static MemoryBudgetManager sInstance;
+
+    private final boolean mLowRamDevice;
+
+    private final int mMemoryClass;
+
+    // Registered trimmables and the names they are reported under. Guarded by this.
+    private final LinkedHashMap<Trimmable, String> mTrimmables = new LinkedHashMap<>();
+
+    // Returns the manager shared by the whole app, registering it for memory callbacks.
+    public static synchronized MemoryBudgetManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MemoryBudgetManager(context.getApplicationContext());
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    private MemoryBudgetManager(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryClass = activityManager.getMemoryClass();
+        mLowRamDevice = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && activityManager.isLowRamDevice();
+    }
+
+    // Start asking the given trimmable to shrink under memory pressure. The name is used in the
+    // footprint report.
+    public synchronized void register(String name, Trimmable trimmable) {
+        mTrimmables.put(trimmable, name);
+    }
+
+    // Stop asking the given trimmable to shrink, e.g. when its owner is destroyed.
+    public synchronized void unregister(Trimmable trimmable) {
+        mTrimmables.remove(trimmable);
+    }
+
+    // Returns whether the device is considered low on RAM, so caches should start small.
+    public boolean isLowRamDevice() {
+        return mLowRamDevice;
+    }
+
+    // Returns the heap size the app should stay within, in bytes.
+    public long getMemoryClassBytes() {
+        return mMemoryClass * 1024L * 1024L;
+    }
+
+    // Returns the sum of the footprints of all registered trimmables.
+    public long getFootprintBytes() {
+        long total = 0;
+        for (Trimmable trimmable : getTrimmables().keySet()) {
+            total += trimmable.getFootprintBytes();
+        }
+        return total;
+    }
+
+    // Returns a readable report of the footprint of every registered trimmable and of the heaps.
+    public String getFootprintReport() {
+        StringBuilder report = new StringBuilder();
+        long total = 0;
+        for (Map.Entry<Trimmable, String> entry : getTrimmables().entrySet()) {
+            long bytes = entry.getKey().getFootprintBytes();
+            total += bytes;
+            report.append(entry.getValue()).append(": ").append(bytes / 1024).append(" KB\n");
+        }
+        Runtime runtime = Runtime.getRuntime();
+        report.append("total: ").append(total / 1024).append(" KB")
+                .append(", java heap: ")
+                .append((runtime.totalMemory() - runtime.freeMemory()) / 1024).append(" KB of ")
+                .append(mMemoryClass * 1024).append(" KB")
+                .append(", native heap: ").append(Debug.getNativeHeapAllocatedSize() / 1024)
+                .append(" KB");
+        return report.toString();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        long before = getFootprintBytes();
+        for (Trimmable trimmable : getTrimmables().keySet()) {
+            trimmable.trimMemory(level);
+        }
+        Log.i(LOG_TAG, "Trimmed memory at level " + level + " from " + before / 1024 + " KB\n"
+                + getFootprintReport());
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    // Returns a copy of the registered trimmables, so they can be called without holding the lock.
+    private synchronized LinkedHashMap<Trimmable, String> getTrimmables() {
+        return new LinkedHashMap<>(mTrimmables);
+    }
+}
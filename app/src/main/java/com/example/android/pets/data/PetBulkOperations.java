@@ -0,0 +1,86 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Changes to many pets at once, each sent to PetProvider as a single transactional call with a
+ * single change notification, however many pets are selected. Call off the UI thread.
+ */
+
+public final class PetBulkOperations {
+
+    public static final String LOG_TAG = PetBulkOperations.class.getSimpleName();
+
+    private PetBulkOperations() {
+    }
+
+    // Set the gender of the pets with the given IDs. Return the number of pets changed, or -1
+    // if the change failed and nothing was changed.
+    public static int setGender(ContentResolver resolver, long[] ids, int gender) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int start = 0; start < ids.length; start += PetContract.MAX_IDS_PER_SELECTION) {
+            int end = Math.min(start + PetContract.MAX_IDS_PER_SELECTION, ids.length);
+            operations.add(ContentProviderOperation.newUpdate(PetEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withSelection(PetContract.buildIdSelection(end - start),
+                            PetContract.buildIdSelectionArgs(ids, start, end))
+                    .build());
+        }
+        return apply(resolver, operations);
+    }
+
+    // Delete the pets with the given IDs. Return the number of pets deleted, or -1 if the
+    // deletion failed and nothing was deleted.
+    public static int delete(ContentResolver resolver, long[] ids) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int start = 0; start < ids.length; start += PetContract.MAX_IDS_PER_SELECTION) {
+            int end = Math.min(start + PetContract.MAX_IDS_PER_SELECTION, ids.length);
+            operations.add(ContentProviderOperation.newDelete(PetEntry.CONTENT_URI)
+                    .withSelection(PetContract.buildIdSelection(end - start),
+                            PetContract.buildIdSelectionArgs(ids, start, end))
+                    .build());
+        }
+        return apply(resolver, operations);
+    }
+
+    // Add the given delta to the weight of the pets with the given IDs, without going below 0.
+    // Return the number of pets changed.
+    public static int adjustWeight(ContentResolver resolver, long[] ids, int delta) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(PetContract.EXTRA_IDS, ids);
+        extras.putInt(PetContract.EXTRA_WEIGHT_DELTA, delta);
+        Bundle result = resolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_ADJUST_WEIGHT,
+                null, extras);
+        return result == null ? -1 : result.getInt(PetContract.EXTRA_ROWS_AFFECTED);
+    }
+
+    // Apply the operations as one batch and return the total number of rows affected.
+    private static int apply(ContentResolver resolver,
+                             ArrayList<ContentProviderOperation> operations) {
+        try {
+            int count = 0;
+            for (ContentProviderResult result : resolver.applyBatch(
+                    PetContract.CONTENT_AUTHORITY, operations)) {
+                count += result.count;
+            }
+            return count;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Failed to apply bulk operation", e);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces the change notifications of PetProvider.
+ *
+ * A burst of writes, such as an import that inserts pets one by one, would otherwise notify every
+ * observer of the pets URI once per row, and each CursorLoader would requery the same number of
+ * times. Instead, changed URIs are collected for a short window after the first change and then
+ * sent once each. Within a batch (see {@link #beginBatch()}) they are held until the batch ends
+ * instead, and dropped if it rolls back. When many URIs below the same parent changed, only the
+ * parent is notified, which reaches the observers of all of them.
+ */
+
+class PetChangeNotifier {
+
+    public static final String LOG_TAG = PetChangeNotifier.class.getSimpleName();
+
+    // Default time to collect changes before notifying, short enough not to be noticed.
+    static final long DEFAULT_WINDOW_MILLIS = 100;
+
+    // Above this many changed URIs below the same parent, notify the parent instead.
+    private static final int MAX_CHILD_URIS = 32;
+
+    private static final int MSG_FLUSH = 1;
+
+    private final ContentResolver mContentResolver;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatch = new ThreadLocal<>();
+
+    // Guarded by this.
+    private long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+    private LinkedHashSet<Uri> mPending = new LinkedHashSet<>();
+
+    PetChangeNotifier(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush();
+                }
+            }
+        };
+    }
+
+    // Set how long changes are collected before they are notified. 0 notifies every change right
+    // away, as long as no batch is running.
+    synchronized void setWindowMillis(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    // Announce that the data at the given URI has changed.
+    void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> batch = mBatch.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+
+        long window;
+        synchronized (this) {
+            window = mWindowMillis;
+            if (window > 0) {
+                mPending.add(uri);
+                // The window starts with the first change, so a steady stream of writes still
+                // gets notified every window instead of being postponed forever.
+                if (!mHandler.hasMessages(MSG_FLUSH)) {
+                    mHandler.sendEmptyMessageDelayed(MSG_FLUSH, window);
+                }
+                return;
+            }
+        }
+        mContentResolver.notifyChange(uri, null);
+    }
+
+    // Hold back the changes made by the current thread until endBatch(). Returns false, and does
+    // nothing, if the thread is already in a batch; the outer batch then covers the inner one.
+    boolean beginBatch() {
+        if (mBatch.get() != null) {
+            return false;
+        }
+        mBatch.set(new LinkedHashSet<Uri>());
+        return true;
+    }
+
+    // End the batch of the current thread. The changes made during the batch are notified right
+    // away if it was successful, and forgotten otherwise.
+    void endBatch(boolean successful) {
+        LinkedHashSet<Uri> batch = mBatch.get();
+        mBatch.remove();
+        if (successful && batch != null && !batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    // Notify the pending changes now.
+    void flush() {
+        LinkedHashSet<Uri> pending;
+        synchronized (this) {
+            mHandler.removeMessages(MSG_FLUSH);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = mPending;
+            mPending = new LinkedHashSet<>();
+        }
+        send(pending);
+    }
+
+    // Notify the pending changes and stop the background thread.
+    void quit() {
+        flush();
+        mThread.quit();
+    }
+
+    // Notify each of the given URIs once, replacing crowds of sibling URIs by their parent.
+    private void send(LinkedHashSet<Uri> uris) {
+        for (Uri uri : collapse(uris)) {
+            mContentResolver.notifyChange(uri, null);
+        }
+    }
+
+    // Returns the given URIs without the ones covered by a parent that is notified anyway, either
+    // because it changed itself or because too many of its children changed.
+    private static List<Uri> collapse(LinkedHashSet<Uri> uris) {
+        LinkedHashMap<Uri, Integer> childCounts = new LinkedHashMap<>();
+        for (Uri uri : uris) {
+            Uri parent = getParent(uri);
+            if (parent != null) {
+                Integer count = childCounts.get(parent);
+                childCounts.put(parent, count == null ? 1 : count + 1);
+            }
+        }
+
+        HashSet<Uri> parents = new HashSet<>();
+        List<Uri> result = new ArrayList<>();
+        for (Map.Entry<Uri, Integer> entry : childCounts.entrySet()) {
+            Uri parent = entry.getKey();
+            if (entry.getValue() > MAX_CHILD_URIS || uris.contains(parent)) {
+                parents.add(parent);
+                result.add(parent);
+            }
+        }
+        for (Uri uri : uris) {
+            if (!parents.contains(uri) && !parents.contains(getParent(uri))) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    // Returns the URI without its last path segment, or null if it has no path.
+    private static Uri getParent(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return null;
+        }
+        Uri.Builder builder = uri.buildUpon().path(null);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+}
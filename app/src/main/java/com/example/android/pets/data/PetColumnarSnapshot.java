@@ -0,0 +1,622 @@
+package com.example.android.pets.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Optional in-memory, column oriented copy of the pets table for interactive filtering.
+ *
+ * Pets are held in parallel primitive arrays sorted by ID: one each for the ID, gender and weight,
+ * and offsets into one shared char buffer for the name and breed. Filtering and sorting run over
+ * these arrays on several threads without allocating anything per row.
+ *
+ * Once attached, the snapshot follows provider change notifications: a change to a single pet
+ * URI re-reads only that pet, any other change reloads the whole table. Under critical memory
+ * pressure an attached snapshot drops its data and reloads it the next time it is filtered.
+ */
+
+public class PetColumnarSnapshot implements MemoryBudgetManager.Trimmable {
+
+    public static final String LOG_TAG = PetColumnarSnapshot.class.getSimpleName();
+
+    // Gender value for filter() that matches any gender.
+    public static final int ANY_GENDER = -1;
+
+    // Sort orders for filter(). Ties are broken by ID.
+    public static final int SORT_BY_ID = 0;
+    public static final int SORT_BY_NAME = 1;
+    public static final int SORT_BY_WEIGHT = 2;
+
+    // Below this many rows, filtering runs on the calling thread only.
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    // Ranges shorter than this are sorted by insertion sort.
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Worker threads shared by all snapshots. Idle threads time out.
+    private static final ExecutorService sExecutor;
+
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    // A unit of work run once per chunk of a parallel operation.
+    private interface ChunkTask {
+        void run(int chunk, int chunks);
+    }
+
+    private final ContentResolver mContentResolver;
+
+    private final MemoryBudgetManager mMemoryBudget;
+
+    // Whether the data was dropped to free memory and should be reloaded when next used.
+    private volatile boolean mTrimmed;
+
+    // Guards all arrays below. Filters hold the read lock while their workers run.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private int mSize;
+    private long[] mIds = new long[0];
+    private byte[] mGenders = new byte[0];
+    private int[] mWeights = new int[0];
+    private int[] mNameOffsets = new int[0];
+    private int[] mNameLengths = new int[0];
+    // Breed length is -1 for an unknown breed.
+    private int[] mBreedOffsets = new int[0];
+    private int[] mBreedLengths = new int[0];
+
+    // Shared buffer for names and breeds, the number of chars used, and how many of those chars
+    // belong to values that have since been replaced.
+    private char[] mChars = new char[0];
+    private int mCharsUsed;
+    private int mCharsGarbage;
+
+    // Background thread for reloads, and the observer that triggers them. Null when detached.
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ContentObserver mObserver;
+
+    /**
+     * Construct a new, empty instance of PetColumnarSnapshot. Call {@link #attach()} to fill it.
+     *
+     * @param context of the app
+     */
+
+    public PetColumnarSnapshot(Context context) {
+        mContentResolver = context.getApplicationContext().getContentResolver();
+        mMemoryBudget = MemoryBudgetManager.getInstance(context);
+    }
+
+    // Load the pets table in the background and keep following changes to it.
+    public synchronized void attach() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                // A single pet URI ends with its ID; anything else may touch any row.
+                if (uri != null && uri.getPathSegments().size() == 2
+                        && PetContract.PATH_PETS.equals(uri.getPathSegments().get(0))
+                        && TextUtils.isDigitsOnly(uri.getLastPathSegment())) {
+                    refreshRow(ContentUris.parseId(uri));
+                } else {
+                    reload();
+                }
+            }
+        };
+        mContentResolver.registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+        mMemoryBudget.register(LOG_TAG, this);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reload();
+            }
+        });
+    }
+
+    // Stop following changes. The data already loaded stays available.
+    public synchronized void detach() {
+        if (mThread == null) {
+            return;
+        }
+        mContentResolver.unregisterContentObserver(mObserver);
+        mMemoryBudget.unregister(this);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+        mObserver = null;
+    }
+
+    // Drop all loaded data, e.g. to free memory. A later change notification reloads it.
+    public void clear() {
+        mLock.writeLock().lock();
+        try {
+            mSize = 0;
+            mIds = new long[0];
+            mGenders = new byte[0];
+            mWeights = new int[0];
+            mNameOffsets = new int[0];
+            mNameLengths = new int[0];
+            mBreedOffsets = new int[0];
+            mBreedLengths = new int[0];
+            mChars = new char[0];
+            mCharsUsed = 0;
+            mCharsGarbage = 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // The snapshot can be reloaded at any time, so give it up when memory is critically low, or
+    // when the app is in the background and likely to be killed otherwise.
+    @Override
+    public synchronized void trimMemory(int level) {
+        if (mThread != null && (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)) {
+            clear();
+            mTrimmed = true;
+        }
+    }
+
+    // Start reloading the data dropped by trimMemory(). Filters return nothing until it is back.
+    private synchronized void reloadAfterTrim() {
+        if (mTrimmed && mHandler != null) {
+            mTrimmed = false;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reload();
+                }
+            });
+        }
+    }
+
+    // Number of pets in the snapshot.
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Approximate number of bytes held by the snapshot.
+    @Override
+    public long getFootprintBytes() {
+        mLock.readLock().lock();
+        try {
+            return mIds.length * (8L + 1 + 4 * 5) + mChars.length * 2L;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the IDs of the pets with the given gender and a weight in the given range, in the
+     * given order.
+     *
+     * @param gender    one of the PetEntry gender constants, or ANY_GENDER
+     * @param minWeight lowest weight to include
+     * @param maxWeight highest weight to include
+     * @param sortKey   SORT_BY_ID, SORT_BY_NAME or SORT_BY_WEIGHT
+     */
+    public long[] filter(final int gender, final int minWeight, final int maxWeight,
+                         final int sortKey) {
+        if (mTrimmed) {
+            reloadAfterTrim();
+        }
+
+        mLock.readLock().lock();
+        try {
+            final int size = mSize;
+            final byte[] genders = mGenders;
+            final int[] weights = mWeights;
+            final int chunks = size >= PARALLEL_THRESHOLD ? THREADS : 1;
+
+            // Each chunk writes its matches to the start of its own range of this array.
+            final int[] matches = new int[size];
+            final int[] counts = new int[chunks];
+            runParallel(chunks, new ChunkTask() {
+                @Override
+                public void run(int chunk, int chunks) {
+                    int start = chunkStart(size, chunk, chunks);
+                    int end = chunkStart(size, chunk + 1, chunks);
+                    int count = 0;
+                    for (int row = start; row < end; row++) {
+                        int weight = weights[row];
+                        if (weight >= minWeight && weight <= maxWeight
+                                && (gender == ANY_GENDER || genders[row] == gender)) {
+                            matches[start + count++] = row;
+                        }
+                    }
+                    counts[chunk] = count;
+                }
+            });
+
+            // Move the matches of all chunks together.
+            int total = 0;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                System.arraycopy(matches, chunkStart(size, chunk, chunks), matches, total,
+                        counts[chunk]);
+                total += counts[chunk];
+            }
+
+            // Rows are kept in ID order, so only the other orders need sorting.
+            if (sortKey != SORT_BY_ID) {
+                sortRows(matches, total, sortKey);
+            }
+
+            long[] ids = new long[total];
+            for (int i = 0; i < total; i++) {
+                ids[i] = mIds[matches[i]];
+            }
+            return ids;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Returns the name of the pet with the given ID, or null if it isn't in the snapshot.
+    public String getName(long id) {
+        mLock.readLock().lock();
+        try {
+            int row = Arrays.binarySearch(mIds, 0, mSize, id);
+            return row < 0 ? null : new String(mChars, mNameOffsets[row], mNameLengths[row]);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Returns the breed of the pet with the given ID, or null if it is unknown.
+    public String getBreed(long id) {
+        mLock.readLock().lock();
+        try {
+            int row = Arrays.binarySearch(mIds, 0, mSize, id);
+            if (row < 0 || mBreedLengths[row] < 0) {
+                return null;
+            }
+            return new String(mChars, mBreedOffsets[row], mBreedLengths[row]);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Returns the weight of the pet with the given ID, or -1 if it isn't in the snapshot.
+    public int getWeight(long id) {
+        mLock.readLock().lock();
+        try {
+            int row = Arrays.binarySearch(mIds, 0, mSize, id);
+            return row < 0 ? -1 : mWeights[row];
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Returns the gender of the pet with the given ID, or -1 if it isn't in the snapshot.
+    public int getGender(long id) {
+        mLock.readLock().lock();
+        try {
+            int row = Arrays.binarySearch(mIds, 0, mSize, id);
+            return row < 0 ? -1 : mGenders[row];
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Read the whole pets table into new arrays, then swap them in.
+    private void reload() {
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI, PROJECTION, null, null,
+                PetEntry._ID);
+        if (cursor == null) {
+            return;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            int count = cursor.getCount();
+            mSize = 0;
+            mIds = new long[count];
+            mGenders = new byte[count];
+            mWeights = new int[count];
+            mNameOffsets = new int[count];
+            mNameLengths = new int[count];
+            mBreedOffsets = new int[count];
+            mBreedLengths = new int[count];
+            mChars = new char[count * 16];
+            mCharsUsed = 0;
+            mCharsGarbage = 0;
+            while (cursor.moveToNext()) {
+                setRow(mSize++, cursor);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+            cursor.close();
+        }
+        Log.v(LOG_TAG, "Loaded " + mSize + " pets");
+    }
+
+    // Re-read a single pet, and insert, update or remove its row.
+    private void refreshRow(long id) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                PROJECTION, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            int row = Arrays.binarySearch(mIds, 0, mSize, id);
+            if (!cursor.moveToFirst()) {
+                if (row >= 0) {
+                    removeRow(row);
+                }
+            } else if (row >= 0) {
+                mCharsGarbage += mNameLengths[row] + Math.max(mBreedLengths[row], 0);
+                setRow(row, cursor);
+            } else {
+                insertRow(-(row + 1));
+                setRow(-(row + 1), cursor);
+            }
+            if (mCharsGarbage > mCharsUsed / 2) {
+                compactChars();
+            }
+        } finally {
+            mLock.writeLock().unlock();
+            cursor.close();
+        }
+    }
+
+    // Copy the current row of the cursor into the given row of the arrays.
+    private void setRow(int row, Cursor cursor) {
+        mIds[row] = cursor.getLong(0);
+        String name = cursor.getString(1);
+        mNameOffsets[row] = appendChars(name);
+        mNameLengths[row] = name.length();
+        String breed = cursor.getString(2);
+        mBreedOffsets[row] = breed == null ? 0 : appendChars(breed);
+        mBreedLengths[row] = breed == null ? -1 : breed.length();
+        mGenders[row] = (byte) cursor.getInt(3);
+        mWeights[row] = cursor.getInt(4);
+    }
+
+    // Open a gap at the given row, growing the arrays if needed.
+    private void insertRow(int row) {
+        if (mSize == mIds.length) {
+            int capacity = Math.max(16, mSize * 3 / 2);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mGenders = Arrays.copyOf(mGenders, capacity);
+            mWeights = Arrays.copyOf(mWeights, capacity);
+            mNameOffsets = Arrays.copyOf(mNameOffsets, capacity);
+            mNameLengths = Arrays.copyOf(mNameLengths, capacity);
+            mBreedOffsets = Arrays.copyOf(mBreedOffsets, capacity);
+            mBreedLengths = Arrays.copyOf(mBreedLengths, capacity);
+        }
+        int tail = mSize - row;
+        System.arraycopy(mIds, row, mIds, row + 1, tail);
+        System.arraycopy(mGenders, row, mGenders, row + 1, tail);
+        System.arraycopy(mWeights, row, mWeights, row + 1, tail);
+        System.arraycopy(mNameOffsets, row, mNameOffsets, row + 1, tail);
+        System.arraycopy(mNameLengths, row, mNameLengths, row + 1, tail);
+        System.arraycopy(mBreedOffsets, row, mBreedOffsets, row + 1, tail);
+        System.arraycopy(mBreedLengths, row, mBreedLengths, row + 1, tail);
+        mSize++;
+    }
+
+    private void removeRow(int row) {
+        mCharsGarbage += mNameLengths[row] + Math.max(mBreedLengths[row], 0);
+        int tail = mSize - row - 1;
+        System.arraycopy(mIds, row + 1, mIds, row, tail);
+        System.arraycopy(mGenders, row + 1, mGenders, row, tail);
+        System.arraycopy(mWeights, row + 1, mWeights, row, tail);
+        System.arraycopy(mNameOffsets, row + 1, mNameOffsets, row, tail);
+        System.arraycopy(mNameLengths, row + 1, mNameLengths, row, tail);
+        System.arraycopy(mBreedOffsets, row + 1, mBreedOffsets, row, tail);
+        System.arraycopy(mBreedLengths, row + 1, mBreedLengths, row, tail);
+        mSize--;
+    }
+
+    // Append the given string to the char buffer and return its offset.
+    private int appendChars(String value) {
+        int length = value.length();
+        if (mCharsUsed + length > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(mCharsUsed + length, mChars.length * 3 / 2));
+        }
+        int offset = mCharsUsed;
+        value.getChars(0, length, mChars, offset);
+        mCharsUsed += length;
+        return offset;
+    }
+
+    // Rewrite the char buffer with only the values still in use.
+    private void compactChars() {
+        char[] chars = new char[Math.max(mCharsUsed - mCharsGarbage, 16)];
+        int used = 0;
+        for (int row = 0; row < mSize; row++) {
+            System.arraycopy(mChars, mNameOffsets[row], chars, used, mNameLengths[row]);
+            mNameOffsets[row] = used;
+            used += mNameLengths[row];
+            if (mBreedLengths[row] > 0) {
+                System.arraycopy(mChars, mBreedOffsets[row], chars, used, mBreedLengths[row]);
+                mBreedOffsets[row] = used;
+                used += mBreedLengths[row];
+            }
+        }
+        mChars = chars;
+        mCharsUsed = used;
+        mCharsGarbage = 0;
+    }
+
+    // Sort the first count row indexes by the given key: chunks are sorted in parallel, then
+    // neighbouring chunks are merged until a single run is left.
+    private void sortRows(final int[] rows, final int count, final int sortKey) {
+        final int[] buffer = new int[count];
+        final int chunks = count >= PARALLEL_THRESHOLD ? THREADS : 1;
+        runParallel(chunks, new ChunkTask() {
+            @Override
+            public void run(int chunk, int chunks) {
+                mergeSort(rows, buffer, chunkStart(count, chunk, chunks),
+                        chunkStart(count, chunk + 1, chunks), sortKey);
+            }
+        });
+
+        for (int width = 1; width < chunks; width *= 2) {
+            final int step = width;
+            final int merges = (chunks + 2 * step - 1) / (2 * step);
+            runParallel(merges, new ChunkTask() {
+                @Override
+                public void run(int merge, int merges) {
+                    int first = merge * 2 * step;
+                    int lo = chunkStart(count, first, chunks);
+                    int mid = chunkStart(count, Math.min(first + step, chunks), chunks);
+                    int hi = chunkStart(count, Math.min(first + 2 * step, chunks), chunks);
+                    merge(rows, buffer, lo, mid, hi, sortKey);
+                }
+            });
+        }
+    }
+
+    private void mergeSort(int[] rows, int[] buffer, int lo, int hi, int sortKey) {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            for (int i = lo + 1; i < hi; i++) {
+                int row = rows[i];
+                int j = i - 1;
+                while (j >= lo && compareRows(rows[j], row, sortKey) > 0) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(rows, buffer, lo, mid, sortKey);
+        mergeSort(rows, buffer, mid, hi, sortKey);
+        merge(rows, buffer, lo, mid, hi, sortKey);
+    }
+
+    // Merge the sorted ranges [lo, mid) and [mid, hi) of rows, using the same range of buffer.
+    private void merge(int[] rows, int[] buffer, int lo, int mid, int hi, int sortKey) {
+        if (mid <= lo || mid >= hi || compareRows(rows[mid - 1], rows[mid], sortKey) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, lo, buffer, lo, hi - lo);
+        int left = lo;
+        int right = mid;
+        for (int i = lo; i < hi; i++) {
+            if (right >= hi || (left < mid && compareRows(buffer[left], buffer[right], sortKey) <= 0)) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
+        }
+    }
+
+    private int compareRows(int a, int b, int sortKey) {
+        int result = 0;
+        if (sortKey == SORT_BY_WEIGHT) {
+            result = compareInts(mWeights[a], mWeights[b]);
+        } else if (sortKey == SORT_BY_NAME) {
+            result = compareChars(mNameOffsets[a], mNameLengths[a], mNameOffsets[b],
+                    mNameLengths[b]);
+        }
+        return result != 0 ? result : compareLongs(mIds[a], mIds[b]);
+    }
+
+    private int compareChars(int offsetA, int lengthA, int offsetB, int lengthB) {
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            char a = Character.toLowerCase(mChars[offsetA + i]);
+            char b = Character.toLowerCase(mChars[offsetB + i]);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    private static int compareInts(int a, int b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    // First index of the given chunk when size items are split into chunks nearly equal parts.
+    private static int chunkStart(int size, int chunk, int chunks) {
+        return (int) ((long) size * chunk / chunks);
+    }
+
+    // Run the task once per chunk: chunk 0 on the calling thread, the others on worker threads.
+    // Returns once all chunks are done.
+    private static void runParallel(final int chunks, final ChunkTask task) {
+        if (chunks <= 1) {
+            task.run(0, 1);
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(chunks - 1);
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            final int current = chunk;
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(current, chunks);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        task.run(0, chunks);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -21,12 +21,106 @@ public final class PetContract {
     // Possible path appended to base content URI for possible URI's.
     public static final String PATH_PETS = "pets";
 
+    // Name of the provider method, for ContentResolver.call(), that adds EXTRA_WEIGHT_DELTA to the
+    // weight of every pet in EXTRA_IDS in one transaction. Weights don't drop below 0. The number
+    // of pets changed is returned in EXTRA_ROWS_AFFECTED.
+    public static final String METHOD_ADJUST_WEIGHT = "adjust_weight";
+
+    // Extras of the provider methods.
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_WEIGHT_DELTA = "weight_delta";
+    public static final String EXTRA_ROWS_AFFECTED = "rows_affected";
+
+    // Largest number of IDs to put in one selection built by buildIdSelection(). SQLite accepts at
+    // most 999 arguments per statement.
+    public static final int MAX_IDS_PER_SELECTION = 500;
+
+    // Returns a selection matching pets by ID, with the given number of arguments.
+    public static String buildIdSelection(int count) {
+        StringBuilder selection = new StringBuilder(PetEntry._ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    // Returns the arguments for buildIdSelection() from the IDs in the range [start, end).
+    public static String[] buildIdSelectionArgs(long[] ids, int start, int end) {
+        String[] args = new String[end - start];
+        for (int i = start; i < end; i++) {
+            args[i - start] = String.valueOf(ids[i]);
+        }
+        return args;
+    }
+
+    // Path appended to the pets content URI for the pets that are available for adoption.
+    public static final String PATH_AVAILABLE = "available";
+
+    // Path appended to the pets content URI for inserting or updating pets by external ID.
+    public static final String PATH_UPSERT = "upsert";
+
+    // Path appended to the pets content URI for the sections of the pets list.
+    public static final String PATH_SECTIONS = "sections";
+
+    // Path appended to a single pet content URI for the history of that pet.
+    public static final String PATH_HISTORY = "history";
+
+    // Path appended to base content URI for the shelter sites sharing this device.
+    public static final String PATH_SHELTERS = "shelters";
+
+    // Path appended to base content URI for unsaved editor drafts.
+    public static final String PATH_DRAFTS = "drafts";
+
     // Inner class that defines constant values for pets database table. Each entry is a single pet.
     public static final class PetEntry implements BaseColumns {
 
         // The content URI to access the pet data in the provider.
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        // The content URI to access the pets available for adoption, newest intake first unless
+        // another sort order is given. Read only.
+        public static final Uri CONTENT_AVAILABLE_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_AVAILABLE);
+
+        // The content URI for merging pets from another registry. Each pet inserted here must have
+        // a COLUMN_PET_EXTERNAL_ID: the pet with that external ID is updated with the given
+        // values, or inserted if there is none yet, so inserting the same record again changes
+        // nothing. bulkInsert() merges a whole batch in one transaction. Write only.
+        public static final Uri CONTENT_UPSERT_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_UPSERT);
+
+        // The content URI to access the sections of the pets list, as rows of
+        // COLUMN_SECTION_LABEL and COLUMN_SECTION_COUNT in list order, computed by one aggregate
+        // query. The selection given applies to the counted pets. Read only; see
+        // buildSectionsUri().
+        public static final Uri CONTENT_SECTIONS_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_SECTIONS);
+
+        // MIME type for the sections of the pets list.
+        public static final String CONTENT_SECTIONS_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_SECTIONS;
+
+        // Query parameter of CONTENT_SECTIONS_URI that selects the grouping, SECTIONS_BY_NAME
+        // (the default) or SECTIONS_BY_BREED.
+        public static final String QUERY_PARAMETER_GROUP_BY = "group_by";
+
+        // Pets grouped by the first letter of their name, ignoring case.
+        public static final String SECTIONS_BY_NAME = "name";
+
+        // Pets grouped by breed, with the pets of unknown breed last. Their label is null.
+        public static final String SECTIONS_BY_BREED = "breed";
+
+        // Columns of the sections.
+        public static final String COLUMN_SECTION_LABEL = "label";
+        public static final String COLUMN_SECTION_COUNT = "count";
+
+        // Returns the content URI for the sections of the given grouping.
+        public static Uri buildSectionsUri(String groupBy) {
+            return CONTENT_SECTIONS_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_GROUP_BY, groupBy)
+                    .build();
+        }
+
         // MIME type for a list of pets.
         public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
                 CONTENT_AUTHORITY + "/" + PATH_PETS;
@@ -38,11 +132,42 @@ public final class PetContract {
         // Name of database table for pets.
         public final static String TABLE_NAME = "pets";
 
+        // Name of database view that joins each pet with the name of its breed. Queries on the
+        // pets content URIs are answered from this view.
+        public final static String DETAILS_VIEW_NAME = "pet_details";
+
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
+        // Name of the breed. The provider stores it in the breeds table and keeps only the breed
+        // ID in the pets table, but it can be read and written here like any other column.
         public static final String COLUMN_PET_BREED = "breed";
+        // ID of the breed in the breeds table, or null for an unknown breed. The catalog reads this
+        // instead of the breed name, and looks the name up in BreedDictionary.
+        public static final String COLUMN_PET_BREED_ID = "breed_id";
         public static final String COLUMN_PET_GENDER = "gender";
         public static final String COLUMN_PET_WEIGHT = "weight";
+        // File name of the pet's photo in the app's photo directory (see PetPhotoStore), or null.
+        public static final String COLUMN_PET_PHOTO = "photo";
+        // Adoption status, one of the STATUS constants. Defaults to STATUS_AVAILABLE.
+        public static final String COLUMN_PET_STATUS = "status";
+        // Time in milliseconds at which the pet came into the shelter. Defaults to the time of
+        // insertion.
+        public static final String COLUMN_PET_INTAKE_DATE = "intake_date";
+        // ID of the pet in the registry it was merged from, unique among all pets, or null for a
+        // pet entered in this app.
+        public static final String COLUMN_PET_EXTERNAL_ID = "external_id";
+        // ID of the shelter the pet belongs to, see ShelterEntry. Not stored; only the pets URIs
+        // of ShelterEntry return it, when it is in the projection, and always for
+        // ShelterEntry.CONTENT_ALL_PETS_URI.
+        public static final String COLUMN_PET_SHELTER_ID = "shelter_id";
+
+        // Sort orders for the pets content URI that list the pets section after section, in the
+        // order of the sections of the same grouping.
+        public static final String SORT_ORDER_BY_NAME =
+                COLUMN_PET_NAME + " COLLATE NOCASE, " + _ID;
+        public static final String SORT_ORDER_BY_BREED = COLUMN_PET_BREED + " IS NULL, "
+                + COLUMN_PET_BREED + " COLLATE NOCASE, " + COLUMN_PET_BREED_ID + ", "
+                + SORT_ORDER_BY_NAME;
 
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
@@ -56,5 +181,140 @@ public final class PetContract {
 
             return false;
         }
+
+        public static final int STATUS_AVAILABLE = 0;
+        public static final int STATUS_ON_HOLD = 1;
+        public static final int STATUS_ADOPTED = 2;
+
+        // Returns whether or not the given status is STATUS_AVAILABLE, STATUS_ON_HOLD,
+        // STATUS_ADOPTED.
+        public static boolean isValidStatus(int status) {
+            return status == STATUS_AVAILABLE || status == STATUS_ON_HOLD
+                    || status == STATUS_ADOPTED;
+        }
+    }
+
+    // Inner class that defines constant values for the shelters table. Each entry is a shelter site
+    // sharing this device, whose pets are kept in a database of their own. The pets of the
+    // default shelter, DEFAULT_SHELTER_ID, are the ones at PetEntry.CONTENT_URI.
+    public static final class ShelterEntry implements BaseColumns {
+
+        // The content URI to access the shelters in the provider. Deleting a shelter deletes all
+        // of its pets.
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SHELTERS);
+
+        // The content URI to query the pets of all shelters at once, the default shelter
+        // included. The shelters are queried in parallel, and their rows returned one shelter
+        // after another, each sorted by the given sort order. Every row has
+        // PetEntry.COLUMN_PET_SHELTER_ID. Read only.
+        public static final Uri CONTENT_ALL_PETS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_PETS);
+
+        // MIME type for a list of shelters.
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_SHELTERS;
+
+        // MIME type for a single shelter.
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_SHELTERS;
+
+        // Name of database table for shelters.
+        public final static String TABLE_NAME = "shelters";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_SHELTER_NAME = "name";
+
+        // ID of the shelter whose pets are at PetEntry.CONTENT_URI. It has no row in the table,
+        // but its pets can also be reached through buildPetsUri(), like those of any shelter.
+        public static final long DEFAULT_SHELTER_ID = 0;
+
+        // Returns the content URI for the pets of the shelter with the given ID. It works like
+        // PetEntry.CONTENT_URI, including the paths below it, for that shelter's pets only.
+        // Batches are only atomic for the default shelter.
+        public static Uri buildPetsUri(long shelterId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(shelterId))
+                    .appendPath(PATH_PETS)
+                    .build();
+        }
+    }
+
+    // Inner class that defines constant values for the breeds lookup table. Each entry is a
+    // distinct breed name, shared by all pets of that breed.
+    public static final class BreedEntry implements BaseColumns {
+
+        // Name of database table for breeds.
+        public final static String TABLE_NAME = "breeds";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_BREED_NAME = "name";
+    }
+
+    // Inner class that defines constant values for the pet history table. Each entry is an earlier
+    // version of a pet, saved just before an update replaced it. Together with the current row in
+    // the pets table, the versions of a pet form its timeline.
+    public static final class HistoryEntry implements BaseColumns {
+
+        // MIME type for the list of versions of a pet.
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+
+        // Name of database table for pet history.
+        public final static String TABLE_NAME = "pet_history";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_HISTORY_PET_ID = "pet_id";
+        // Version numbers start at 1 for each pet and increase with every update.
+        public static final String COLUMN_HISTORY_VERSION = "version";
+        public static final String COLUMN_HISTORY_NAME = "name";
+        public static final String COLUMN_HISTORY_BREED = "breed";
+        public static final String COLUMN_HISTORY_GENDER = "gender";
+        public static final String COLUMN_HISTORY_WEIGHT = "weight";
+        // File name of the photo. The file itself is deleted once no pet uses it anymore.
+        public static final String COLUMN_HISTORY_PHOTO = "photo";
+        public static final String COLUMN_HISTORY_STATUS = "status";
+        public static final String COLUMN_HISTORY_INTAKE_DATE = "intake_date";
+        // Time in milliseconds at which this version was replaced.
+        public static final String COLUMN_HISTORY_CHANGED_AT = "changed_at";
+
+        // Returns the content URI for the history of the pet with the given ID.
+        public static Uri buildHistoryUri(long petId) {
+            return PetEntry.CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(petId))
+                    .appendPath(PATH_HISTORY)
+                    .build();
+        }
+    }
+
+    // Inner class that defines constant values for the drafts table. Each entry is the unsaved
+    // editor state for a single pet, keyed by the pet ID (NEW_PET_ID for a pet not yet inserted).
+    public static final class DraftEntry implements BaseColumns {
+
+        // The content URI to access the drafts in the provider. Append the pet ID to access the
+        // draft of a single pet.
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DRAFTS);
+
+        // MIME type for a list of drafts.
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_DRAFTS;
+
+        // MIME type for a single draft.
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_DRAFTS;
+
+        // Name of database table for drafts.
+        public final static String TABLE_NAME = "drafts";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_DRAFT_PET_ID = "pet_id";
+        public static final String COLUMN_DRAFT_NAME = "name";
+        public static final String COLUMN_DRAFT_BREED = "breed";
+        public static final String COLUMN_DRAFT_GENDER = "gender";
+        // Weight is kept as the raw text of the editor field, so partial input survives as typed.
+        public static final String COLUMN_DRAFT_WEIGHT = "weight";
+        public static final String COLUMN_DRAFT_PHOTO = "photo";
+        public static final String COLUMN_DRAFT_UPDATED = "updated";
+
+        // Pet ID used for the draft of a pet that has not been inserted yet.
+        public static final long NEW_PET_ID = 0;
     }
 }
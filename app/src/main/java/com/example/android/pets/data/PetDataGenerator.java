@@ -0,0 +1,169 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates realistic synthetic pets for load testing, and inserts them through the provider's
+ * batched bulkInsert() path.
+ *
+ * The data only depends on the seed: the same seed always produces the same pets in the same
+ * order, including intake dates, which count back from a fixed reference time rather than from
+ * now. Generating into an empty database therefore gives identical datasets for benchmarks and
+ * bug reports. Names and breeds follow a Zipf-like distribution (a few are very common, most are
+ * rare), weights depend on the breed and are skewed to the right, and most older pets have been
+ * adopted.
+ */
+
+public class PetDataGenerator {
+
+    public static final String LOG_TAG = PetDataGenerator.class.getSimpleName();
+
+    // Seed used unless another one is given, so datasets are reproducible by default.
+    public static final long DEFAULT_SEED = 20180101L;
+
+    // Number of pets inserted per bulkInsert() call, i.e. per transaction. Large enough to make
+    // commits rare, small enough that a million pets never have to be in memory at once.
+    private static final int BATCH_SIZE = 5000;
+
+    // Intake dates are spread over the years before this time (2018-01-01 UTC).
+    private static final long REFERENCE_TIME = 1514764800000L;
+
+    private static final long INTAKE_SPAN = TimeUnit.DAYS.toMillis(5 * 365);
+
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Buddy", "Molly",
+            "Rocky", "Bailey", "Bear", "Sadie", "Duke", "Maggie", "Tucker", "Chloe", "Jack",
+            "Sophie", "Oliver", "Stella", "Toby", "Lola", "Milo", "Zoe", "Teddy", "Penny",
+            "Bentley", "Coco", "Leo", "Rosie", "Winston", "Ruby", "Murphy", "Gracie", "Zeus",
+            "Roxy", "Louie", "Lily", "Oscar", "Nala", "Simba", "Pepper", "Ginger", "Toto",
+            "Shadow", "Mittens", "Smokey", "Tiger", "Whiskers", "Biscuit", "Pumpkin", "Oreo",
+            "Peanut", "Scout", "Willow", "Hazel", "Jasper", "Marley", "Finn"};
+
+    private static final String[] BREEDS = {
+            "Mixed", "Domestic Shorthair", "Labrador Retriever", "Pit Bull Terrier",
+            "Chihuahua", "German Shepherd", "Domestic Longhair", "Terrier", "Beagle", "Boxer",
+            "Siamese", "Golden Retriever", "Dachshund", "Poodle", "Husky", "Tabby", "Shih Tzu",
+            "Border Collie", "Maine Coon", "Yorkshire Terrier", "Rottweiler", "Bulldog",
+            "Persian", "Great Dane", "Rabbit"};
+
+    // Typical adult weight of each breed above, in kg.
+    private static final int[] BREED_WEIGHTS = {
+            15, 4, 30, 25, 2, 35, 5, 8, 10, 28, 4, 30, 8, 12, 23, 4, 6, 18, 7, 3, 45, 23, 4, 60,
+            2};
+
+    private final Random mRandom;
+
+    private final double[] mNameWeights = cumulativeZipf(NAMES.length);
+
+    private final double[] mBreedWeights = cumulativeZipf(BREEDS.length);
+
+    public PetDataGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    // Returns the next pet, as content values for inserting into PetEntry.CONTENT_URI.
+    public ContentValues nextPet() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, NAMES[pick(mNameWeights)]);
+
+        // One in twenty pets is of unknown breed.
+        int breed = pick(mBreedWeights);
+        boolean breedKnown = mRandom.nextInt(20) != 0;
+        if (breedKnown) {
+            values.put(PetEntry.COLUMN_PET_BREED, BREEDS[breed]);
+        }
+
+        // Shelters see slightly more males than females, and the gender of a few is not recorded.
+        int gender = mRandom.nextInt(100);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender < 48 ? PetEntry.GENDER_MALE
+                : gender < 92 ? PetEntry.GENDER_FEMALE : PetEntry.GENDER_UNKNOWN);
+
+        // Log-normal around the typical weight of the breed: most close to it, a long tail of
+        // heavy ones, and young animals rounding down to 0.
+        int typical = breedKnown ? BREED_WEIGHTS[breed] : BREED_WEIGHTS[0];
+        long weight = Math.round(typical * Math.exp(mRandom.nextGaussian() * 0.35));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, (int) Math.max(0, weight));
+
+        // Intake dates cluster towards the reference time, as most pets stay only briefly. The
+        // longer ago a pet came in, the more likely it has been adopted.
+        double age = Math.pow(mRandom.nextDouble(), 2);
+        values.put(PetEntry.COLUMN_PET_INTAKE_DATE, REFERENCE_TIME - (long) (age * INTAKE_SPAN));
+        double chance = mRandom.nextDouble();
+        int status;
+        if (chance < 0.05 + 0.9 * Math.sqrt(age)) {
+            status = PetEntry.STATUS_ADOPTED;
+        } else if (chance < 0.1 + 0.9 * Math.sqrt(age)) {
+            status = PetEntry.STATUS_ON_HOLD;
+        } else {
+            status = PetEntry.STATUS_AVAILABLE;
+        }
+        values.put(PetEntry.COLUMN_PET_STATUS, status);
+        return values;
+    }
+
+    /**
+     * Insert the given number of generated pets into the pets table, one transaction per batch.
+     * Blocks until done; call off the UI thread.
+     *
+     * @param resolver to insert the pets with
+     * @param count    number of pets to insert
+     * @return the number of pets inserted
+     */
+    public int insertPets(ContentResolver resolver, int count) {
+        return insertPets(resolver, PetEntry.CONTENT_URI, count);
+    }
+
+    // Same as insertPets(ContentResolver, int), for a pets content URI of another provider.
+    public int insertPets(ContentResolver resolver, Uri uri, int count) {
+        long begin = SystemClock.elapsedRealtime();
+        int inserted = 0;
+        ContentValues[] batch = new ContentValues[Math.min(BATCH_SIZE, count)];
+        while (inserted < count) {
+            int size = Math.min(batch.length, count - inserted);
+            if (size != batch.length) {
+                batch = new ContentValues[size];
+            }
+            for (int i = 0; i < size; i++) {
+                batch[i] = nextPet();
+            }
+            int added = resolver.bulkInsert(uri, batch);
+            inserted += added;
+            if (added < size) {
+                Log.e(LOG_TAG, "Only " + added + " of " + size + " pets were inserted");
+                break;
+            }
+        }
+        Log.i(LOG_TAG, "Inserted " + inserted + " pets in "
+                + (SystemClock.elapsedRealtime() - begin) + " ms");
+        return inserted;
+    }
+
+    // Returns the index of a random entry, given the cumulative weights of all entries.
+    private int pick(double[] cumulativeWeights) {
+        double value = mRandom.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, value);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    // Returns cumulative Zipf weights for the given number of entries: the entry of rank k is
+    // picked with a probability proportional to 1 / k.
+    private static double[] cumulativeZipf(int count) {
+        double[] weights = new double[count];
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            total += 1.0 / (i + 1);
+            weights[i] = total;
+        }
+        return weights;
+    }
+}
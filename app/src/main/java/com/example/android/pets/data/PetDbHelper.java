@@ -3,8 +3,13 @@ package com.example.android.pets.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.DraftEntry;
+import com.example.android.pets.data.PetContract.HistoryEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.ShelterEntry;
 
 /**
  * Database helper for Pets app. Manages database creation and version management.
@@ -17,8 +22,55 @@ public class PetDbHelper extends SQLiteOpenHelper {
     // Name of the database file.
     private static final String DATABASE_NAME = "shelter.db";
 
+    // Inserted before the shelter ID in the database file name of a shelter's partition.
+    private static final String SHELTER_INFIX = "-site-";
+
     // Name of the database version.
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 10;
+
+    // Selection of the pets available for adoption. The available pets index is partial on
+    // exactly this term, and SQLite only uses the index for queries that repeat it literally, so
+    // it must not be turned into a "?" argument.
+    static final String SELECTION_AVAILABLE =
+            PetEntry.COLUMN_PET_STATUS + " = " + PetEntry.STATUS_AVAILABLE;
+
+    /**
+     * Returns the name of the database file that holds the pets of the given shelter, next to the
+     * given database, e.g. "shelter-site-2.db" for the app's database "shelter.db".
+     *
+     * @param name      of the database that holds the shelters table, or null for the app's
+     * @param shelterId of the shelter
+     */
+
+    static String getShelterDatabaseName(String name, long shelterId) {
+        return getBaseName(name) + SHELTER_INFIX + shelterId + ".db";
+    }
+
+    /**
+     * Delete the given database file and the partitions of all of its shelters.
+     *
+     * @param context of the app
+     * @param name    of the database that holds the shelters table
+     */
+
+    static void deleteDatabaseWithShelters(Context context, String name) {
+        String prefix = getBaseName(name) + SHELTER_INFIX;
+        for (String file : context.databaseList()) {
+            // The list also has the journal files, which deleteDatabase() deletes along.
+            if (file.startsWith(prefix) && file.endsWith(".db")) {
+                context.deleteDatabase(file);
+            }
+        }
+        context.deleteDatabase(name);
+    }
+
+    // Returns the database name without the ".db" extension.
+    private static String getBaseName(String name) {
+        if (name == null) {
+            name = DATABASE_NAME;
+        }
+        return name.endsWith(".db") ? name.substring(0, name.length() - 3) : name;
+    }
 
     /**
      * Construct a new instance of PetDbHelper.
@@ -27,29 +79,269 @@ public class PetDbHelper extends SQLiteOpenHelper {
      */
 
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME,
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Construct a new instance of PetDbHelper for a database file other than the app's shelter
+     * database, e.g. a scratch database for benchmarks.
+     *
+     * @param context of the app
+     * @param name    of the database file
+     */
+
+    public PetDbHelper(Context context, String name) {
+        super(context, name,
                 null, DATABASE_VERSION);
     }
 
     // The is called when the database is created for the first time.
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createBreedsTable(db);
+
         // Create a String that contains the SQL statement to create the pets table
         String SQL_CREATE_PETS_TABLE = "CREATE TABLE " + PetEntry.TABLE_NAME + " ("
                 + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
-                + PetEntry.COLUMN_PET_BREED + " TEXT, "
+                + PetEntry.COLUMN_PET_BREED_ID + " INTEGER REFERENCES "
+                + BreedEntry.TABLE_NAME + "(" + BreedEntry._ID + "), "
                 + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
-                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_PHOTO + " TEXT, "
+                + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT "
+                + PetEntry.STATUS_AVAILABLE + ", "
+                + PetEntry.COLUMN_PET_INTAKE_DATE + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_EXTERNAL_ID + " TEXT);";
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_PETS_TABLE);
+        createAvailablePetsIndex(db);
+        createNameIndex(db);
+        createExternalIdIndex(db);
+
+        createDraftsTable(db);
+        createHistoryTable(db);
+        createSheltersTable(db);
+        createPetDetailsView(db);
     }
 
     //This is called when the database needs to be upgraded.
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        // Apply each migration step in turn, so any older version ends up at the current schema.
+        if (oldVersion < 2) {
+            createDraftsTable(db);
+        }
+        if (oldVersion < 3) {
+            createHistoryTable(db);
+        }
+        if (oldVersion < 4) {
+            migrateBreedsToLookupTable(db);
+        }
+        if (oldVersion < 5) {
+            // Photos are optional, so existing pets and drafts simply have none.
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_PHOTO + " TEXT");
+            // A drafts table created by the version 2 step above already has the column.
+            if (oldVersion >= 2) {
+                db.execSQL("ALTER TABLE " + DraftEntry.TABLE_NAME + " ADD COLUMN "
+                        + DraftEntry.COLUMN_DRAFT_PHOTO + " TEXT");
+            }
+        }
+        if (oldVersion < 6) {
+            // Existing pets stay available. Their intake date is unknown and left at 0, so they
+            // sort after every pet taken in from now on.
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT "
+                    + PetEntry.STATUS_AVAILABLE);
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_INTAKE_DATE + " INTEGER NOT NULL DEFAULT 0");
+            createAvailablePetsIndex(db);
+        }
+        if (oldVersion < 7) {
+            createNameIndex(db);
+        }
+        if (oldVersion < 8) {
+            // Existing pets were entered in this app, so they have no external ID.
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_EXTERNAL_ID + " TEXT");
+            createExternalIdIndex(db);
+        }
+        if (oldVersion < 9) {
+            createSheltersTable(db);
+        }
+        if (oldVersion < 10) {
+            // A history table created by the version 3 step above already has the columns and
+            // the index. Older versions didn't record these columns, so they stay null.
+            if (oldVersion >= 3) {
+                db.execSQL("ALTER TABLE " + HistoryEntry.TABLE_NAME + " ADD COLUMN "
+                        + HistoryEntry.COLUMN_HISTORY_PHOTO + " TEXT");
+                db.execSQL("ALTER TABLE " + HistoryEntry.TABLE_NAME + " ADD COLUMN "
+                        + HistoryEntry.COLUMN_HISTORY_STATUS + " INTEGER");
+                db.execSQL("ALTER TABLE " + HistoryEntry.TABLE_NAME + " ADD COLUMN "
+                        + HistoryEntry.COLUMN_HISTORY_INTAKE_DATE + " INTEGER");
+                createHistoryChangedAtIndex(db);
+            }
+        }
+
+        // Views are not migrated, just rebuilt against the current tables.
+        createPetDetailsView(db);
+    }
+
+    // Create the breeds lookup table. Breed names are unique, so each one is stored only once.
+    private static void createBreedsTable(SQLiteDatabase db) {
+        String SQL_CREATE_BREEDS_TABLE = "CREATE TABLE " + BreedEntry.TABLE_NAME + " ("
+                + BreedEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + BreedEntry.COLUMN_BREED_NAME + " TEXT NOT NULL UNIQUE);";
+
+        db.execSQL(SQL_CREATE_BREEDS_TABLE);
+    }
+
+    // Move the free text breed of every pet into the breeds table, and replace it with the ID of
+    // the breed. SQLite can't drop a column, so the pets table is rebuilt under a new name.
+    private static void migrateBreedsToLookupTable(SQLiteDatabase db) {
+        createBreedsTable(db);
+
+        db.execSQL("INSERT INTO " + BreedEntry.TABLE_NAME + " (" + BreedEntry.COLUMN_BREED_NAME
+                + ") SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL AND "
+                + PetEntry.COLUMN_PET_BREED + " != ''");
+
+        // The pets table as of version 4. Later columns are added by the later migration steps.
+        String newTable = PetEntry.TABLE_NAME + "_new";
+        db.execSQL("CREATE TABLE " + newTable + " ("
+                + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                + PetEntry.COLUMN_PET_BREED_ID + " INTEGER REFERENCES "
+                + BreedEntry.TABLE_NAME + "(" + BreedEntry._ID + "), "
+                + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + newTable + " (" + PetEntry._ID + ", "
+                + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED_ID + ", "
+                + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") SELECT p."
+                + PetEntry._ID + ", p." + PetEntry.COLUMN_PET_NAME + ", b." + BreedEntry._ID
+                + ", p." + PetEntry.COLUMN_PET_GENDER + ", p." + PetEntry.COLUMN_PET_WEIGHT
+                + " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BreedEntry.TABLE_NAME
+                + " b ON b." + BreedEntry.COLUMN_BREED_NAME + " = p." + PetEntry.COLUMN_PET_BREED);
+
+        // Dropping the old table drops its AUTOINCREMENT counter too, and the new one would hand
+        // out the IDs of deleted pets again, which still have history. Carry the counter over;
+        // the rename below takes it along to the new table.
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + newTable + "'");
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + newTable
+                + "', seq FROM sqlite_sequence WHERE name = '" + PetEntry.TABLE_NAME + "'");
+
+        db.execSQL("DROP TABLE " + PetEntry.TABLE_NAME);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + PetEntry.TABLE_NAME);
+    }
+
+    // Create the index behind the available pets query, newest intake first. Adopted pets pile up
+    // over the years while only a few are available at any time, so the index covers only the
+    // available ones and that query reads a short index range. Partial indexes need SQLite 3.8.0,
+    // which ships with Lollipop; before that, the index leads with the status instead, which serves
+    // the same query but also holds every adopted pet.
+    private static void createAvailablePetsIndex(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            db.execSQL("CREATE INDEX pets_available_intake ON " + PetEntry.TABLE_NAME + " ("
+                    + PetEntry.COLUMN_PET_INTAKE_DATE + ") WHERE " + SELECTION_AVAILABLE + ";");
+        } else {
+            db.execSQL("CREATE INDEX pets_status_intake ON " + PetEntry.TABLE_NAME + " ("
+                    + PetEntry.COLUMN_PET_STATUS + ", " + PetEntry.COLUMN_PET_INTAKE_DATE + ");");
+        }
+    }
+
+    // Create the index that returns the pets in catalog order (PetEntry.SORT_ORDER_BY_NAME)
+    // without sorting, and lets the name sections be counted from the index alone.
+    private static void createNameIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX pets_name ON " + PetEntry.TABLE_NAME + " ("
+                + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE);");
+    }
+
+    // Create the index that finds a pet by external ID for upserts, and keeps external IDs
+    // unique. Pets without an external ID don't conflict, as SQLite treats NULLs as distinct.
+    private static void createExternalIdIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX pets_external_id ON " + PetEntry.TABLE_NAME + " ("
+                + PetEntry.COLUMN_PET_EXTERNAL_ID + ");");
+    }
+
+    // (Re)create the view that presents each pet with the name of its breed, so readers see the
+    // same columns as before breeds moved to their own table.
+    private static void createPetDetailsView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + PetEntry.DETAILS_VIEW_NAME);
+
+        String SQL_CREATE_PET_DETAILS_VIEW = "CREATE VIEW " + PetEntry.DETAILS_VIEW_NAME
+                + " AS SELECT p." + PetEntry._ID + " AS " + PetEntry._ID
+                + ", p." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME
+                + ", p." + PetEntry.COLUMN_PET_BREED_ID + " AS " + PetEntry.COLUMN_PET_BREED_ID
+                + ", b." + BreedEntry.COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED
+                + ", p." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER
+                + ", p." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT
+                + ", p." + PetEntry.COLUMN_PET_PHOTO + " AS " + PetEntry.COLUMN_PET_PHOTO
+                + ", p." + PetEntry.COLUMN_PET_STATUS + " AS " + PetEntry.COLUMN_PET_STATUS
+                + ", p." + PetEntry.COLUMN_PET_INTAKE_DATE + " AS " + PetEntry.COLUMN_PET_INTAKE_DATE
+                + ", p." + PetEntry.COLUMN_PET_EXTERNAL_ID + " AS " + PetEntry.COLUMN_PET_EXTERNAL_ID
+                + " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BreedEntry.TABLE_NAME
+                + " b ON p." + PetEntry.COLUMN_PET_BREED_ID + " = b." + BreedEntry._ID + ";";
+
+        db.execSQL(SQL_CREATE_PET_DETAILS_VIEW);
+    }
+
+    // Create the shelters table. The partitions of the shelters have an empty one, as shelters
+    // aren't nested.
+    private static void createSheltersTable(SQLiteDatabase db) {
+        String SQL_CREATE_SHELTERS_TABLE = "CREATE TABLE " + ShelterEntry.TABLE_NAME + " ("
+                + ShelterEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + ShelterEntry.COLUMN_SHELTER_NAME + " TEXT NOT NULL);";
+
+        db.execSQL(SQL_CREATE_SHELTERS_TABLE);
+    }
+
+    // Create the drafts table, which holds at most one unsaved editor state per pet.
+    private static void createDraftsTable(SQLiteDatabase db) {
+        String SQL_CREATE_DRAFTS_TABLE = "CREATE TABLE " + DraftEntry.TABLE_NAME + " ("
+                + DraftEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + DraftEntry.COLUMN_DRAFT_PET_ID + " INTEGER NOT NULL UNIQUE, "
+                + DraftEntry.COLUMN_DRAFT_NAME + " TEXT, "
+                + DraftEntry.COLUMN_DRAFT_BREED + " TEXT, "
+                + DraftEntry.COLUMN_DRAFT_GENDER + " INTEGER NOT NULL DEFAULT 0, "
+                + DraftEntry.COLUMN_DRAFT_WEIGHT + " TEXT, "
+                + DraftEntry.COLUMN_DRAFT_PHOTO + " TEXT, "
+                + DraftEntry.COLUMN_DRAFT_UPDATED + " INTEGER NOT NULL DEFAULT 0);";
+
+        db.execSQL(SQL_CREATE_DRAFTS_TABLE);
+    }
+
+    // Create the append-only pet history table. The unique index serves both the timeline query
+    // of a single pet and the per-pet version lookups of the compactor.
+    private static void createHistoryTable(SQLiteDatabase db) {
+        String SQL_CREATE_HISTORY_TABLE = "CREATE TABLE " + HistoryEntry.TABLE_NAME + " ("
+                + HistoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + HistoryEntry.COLUMN_HISTORY_PET_ID + " INTEGER NOT NULL, "
+                + HistoryEntry.COLUMN_HISTORY_VERSION + " INTEGER NOT NULL, "
+                + HistoryEntry.COLUMN_HISTORY_NAME + " TEXT, "
+                + HistoryEntry.COLUMN_HISTORY_BREED + " TEXT, "
+                + HistoryEntry.COLUMN_HISTORY_GENDER + " INTEGER, "
+                + HistoryEntry.COLUMN_HISTORY_WEIGHT + " INTEGER, "
+                + HistoryEntry.COLUMN_HISTORY_PHOTO + " TEXT, "
+                + HistoryEntry.COLUMN_HISTORY_STATUS + " INTEGER, "
+                + HistoryEntry.COLUMN_HISTORY_INTAKE_DATE + " INTEGER, "
+                + HistoryEntry.COLUMN_HISTORY_CHANGED_AT + " INTEGER NOT NULL);";
+
+        String SQL_CREATE_HISTORY_INDEX = "CREATE UNIQUE INDEX pet_history_pet_version ON "
+                + HistoryEntry.TABLE_NAME + " (" + HistoryEntry.COLUMN_HISTORY_PET_ID + ", "
+                + HistoryEntry.COLUMN_HISTORY_VERSION + ");";
+
+        db.execSQL(SQL_CREATE_HISTORY_TABLE);
+        db.execSQL(SQL_CREATE_HISTORY_INDEX);
+        createHistoryChangedAtIndex(db);
+    }
+
+    // Create the index that lets the compactor find the expired versions without scanning the
+    // whole history table for every batch it deletes.
+    private static void createHistoryChangedAtIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX pet_history_changed_at ON " + HistoryEntry.TABLE_NAME + " ("
+                + HistoryEntry.COLUMN_HISTORY_CHANGED_AT + ");");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,283 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules database maintenance based on write volume.
+ *
+ * PetProvider reports every write and every query. Once enough rows have been written, the
+ * planner statistics are refreshed (PRAGMA optimize, or ANALYZE on SQLite versions without it),
+ * the write-ahead log is checkpointed and a quick integrity check is run. The work is done on a
+ * low priority background thread, only after the provider has been idle for a while, and each
+ * pass stops after a time budget; unfinished steps continue in the next idle period. A step that
+ * is still running when the budget runs out is cancelled, so it never holds the connection
+ * longer than that, and is skipped until maintenance is scheduled again.
+ */
+
+public class PetDbMaintenance {
+
+    public static final String LOG_TAG = PetDbMaintenance.class.getSimpleName();
+
+    // Number of written rows after which maintenance is scheduled.
+    private static final int MAINTAIN_AFTER_WRITES = 1000;
+
+    // How long the provider must be idle before a maintenance step starts.
+    private static final long IDLE_MILLIS = 3000;
+
+    // Maximum time spent per maintenance pass.
+    private static final long BUDGET_MILLIS = 200;
+
+    // Rows ANALYZE samples per index, on SQLite versions that support the limit (3.32). Older
+    // versions ignore the pragma and rely on cancellation alone.
+    private static final int ANALYSIS_LIMIT = 1000;
+
+    // Maintenance steps, run in this order.
+    private static final int STEP_STATISTICS = 0;
+    private static final int STEP_CHECKPOINT = 1;
+    private static final int STEP_INTEGRITY_CHECK = 2;
+    private static final int STEP_COUNT = 3;
+
+    // Pages the page cache of the main connection is limited to once memory got critical, about
+    // 256 KB with the default page size.
+    private static final int TRIMMED_CACHE_PAGES = 64;
+
+    private final PetDbHelper mDbHelper;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    // Cancels the running step once its pass is out of time. The maintenance thread is busy
+    // running the step, so the timeouts get a thread of their own rather than the main thread.
+    private final HandlerThread mTimeoutThread;
+
+    private final Handler mTimeoutHandler;
+
+    // Rows written since the last maintenance was scheduled.
+    private final AtomicInteger mWrites = new AtomicInteger();
+
+    // Uptime in milliseconds of the last query or write through the provider.
+    private volatile long mLastActivity;
+
+    // Next step to run; only touched on the maintenance thread. STEP_COUNT when nothing is due.
+    private int mNextStep = STEP_COUNT;
+
+    // Estimated bytes of the main connection's page cache, as of the last estimate. Estimated on
+    // the maintenance thread, so reading it never waits for the database.
+    private volatile long mCacheFootprintBytes;
+
+    private final Runnable mEstimateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            estimateCacheFootprint(mDbHelper.getWritableDatabase());
+        }
+    };
+
+    private final Runnable mMaintainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            maintain();
+        }
+    };
+
+    /**
+     * Construct a new instance of PetDbMaintenance and start its background thread.
+     *
+     * @param dbHelper of the database to maintain
+     */
+
+    public PetDbMaintenance(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_LOWEST);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mTimeoutThread = new HandlerThread(LOG_TAG + "Timeout",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mTimeoutThread.start();
+        mTimeoutHandler = new Handler(mTimeoutThread.getLooper());
+    }
+
+    // Record a foreground query, which pushes back any pending maintenance.
+    public void onQuery() {
+        mLastActivity = SystemClock.uptimeMillis();
+    }
+
+    // Record that the given number of rows were written, and schedule maintenance once enough
+    // writes have accumulated.
+    public void onWrites(int count) {
+        mLastActivity = SystemClock.uptimeMillis();
+        if (count > 0 && mWrites.addAndGet(count) >= MAINTAIN_AFTER_WRITES) {
+            mWrites.set(0);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Start over with fresh statistics, even if the last pass didn't finish.
+                    mNextStep = STEP_STATISTICS;
+                    mHandler.removeCallbacks(mMaintainRunnable);
+                    mHandler.postDelayed(mMaintainRunnable, IDLE_MILLIS);
+                }
+            });
+        }
+    }
+
+    // Give back memory held by SQLite, on the maintenance thread so the caller never waits for a
+    // database lock. Unused cache pages are always freed; when critical, the page cache of the main
+    // connection is also made smaller for the rest of the process lifetime.
+    public void releaseMemory(final boolean critical) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase.releaseMemory();
+                if (critical) {
+                    SQLiteDatabase database = mDbHelper.getWritableDatabase();
+                    runPragma(database, "PRAGMA cache_size = " + TRIMMED_CACHE_PAGES, null);
+                    runPragma(database, "PRAGMA shrink_memory", null);
+                }
+                estimateCacheFootprint(mDbHelper.getWritableDatabase());
+            }
+        });
+    }
+
+    // Estimate the page cache of the main connection once the provider had time to open the
+    // database, so the footprint is known before the first maintenance pass.
+    public void estimateFootprintLater() {
+        mHandler.postDelayed(mEstimateRunnable, IDLE_MILLIS);
+    }
+
+    // Returns the estimated bytes of the main connection's page cache. SQLite's own accounting
+    // (SQLiteDebug) isn't public API, so this is the cache size, capped at the size of the
+    // database, as of the last maintenance pass or memory release.
+    public long getCacheFootprintBytes() {
+        return mCacheFootprintBytes;
+    }
+
+    // Stop the background threads. Pending maintenance is dropped.
+    public void quit() {
+        mHandler.removeCallbacks(mMaintainRunnable);
+        mHandler.removeCallbacks(mEstimateRunnable);
+        mThread.quit();
+        mTimeoutThread.quit();
+    }
+
+    // Run due maintenance steps until the budget is used up or the provider becomes busy.
+    private void maintain() {
+        long start = SystemClock.uptimeMillis();
+        estimateCacheFootprint(mDbHelper.getWritableDatabase());
+        while (mNextStep < STEP_COUNT) {
+            long idleFor = SystemClock.uptimeMillis() - mLastActivity;
+            if (idleFor < IDLE_MILLIS) {
+                // The provider is in use, so try again once it has been idle long enough.
+                mHandler.postDelayed(mMaintainRunnable, IDLE_MILLIS - idleFor);
+                return;
+            }
+            if (SystemClock.uptimeMillis() - start >= BUDGET_MILLIS) {
+                // Out of time for this pass, so continue in the next idle period.
+                mHandler.postDelayed(mMaintainRunnable, IDLE_MILLIS);
+                return;
+            }
+
+            // Cancel the step if it runs past the budget of this pass.
+            final CancellationSignal signal = new CancellationSignal();
+            Runnable timeout = new Runnable() {
+                @Override
+                public void run() {
+                    signal.cancel();
+                }
+            };
+            long stepStart = SystemClock.uptimeMillis();
+            mTimeoutHandler.postDelayed(timeout, BUDGET_MILLIS - (stepStart - start));
+            try {
+                runStep(mNextStep, signal);
+                Log.v(LOG_TAG, "Maintenance step " + mNextStep + " took "
+                        + (SystemClock.uptimeMillis() - stepStart) + " ms");
+            } catch (OperationCanceledException e) {
+                // It would run out of time again, so skip it rather than retry it every pass.
+                Log.w(LOG_TAG, "Maintenance step " + mNextStep + " cancelled after "
+                        + (SystemClock.uptimeMillis() - stepStart) + " ms");
+            } finally {
+                mTimeoutHandler.removeCallbacks(timeout);
+            }
+            mNextStep++;
+        }
+    }
+
+    // Run the given step, throwing OperationCanceledException if the signal is cancelled first.
+    private void runStep(int step, CancellationSignal signal) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        switch (step) {
+            case STEP_STATISTICS:
+                // Sample the indexes instead of reading them whole, where SQLite supports it.
+                runPragma(database, "PRAGMA analysis_limit = " + ANALYSIS_LIMIT, null);
+                // PRAGMA optimize (SQLite 3.18, Android 8.0) only analyzes tables whose
+                // statistics are likely out of date. Older versions need a full ANALYZE.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    runPragma(database, "PRAGMA optimize", signal);
+                } else {
+                    runPragma(database, "ANALYZE", signal);
+                }
+                break;
+            case STEP_CHECKPOINT:
+                // Only databases in write-ahead logging mode have a log to checkpoint. PASSIVE
+                // never waits for readers or writers.
+                if ("wal".equalsIgnoreCase(runPragma(database, "PRAGMA journal_mode", signal))) {
+                    runPragma(database, "PRAGMA wal_checkpoint(PASSIVE)", signal);
+                }
+                break;
+            case STEP_INTEGRITY_CHECK:
+                String result = runPragma(database, "PRAGMA quick_check(1)", signal);
+                if (!"ok".equalsIgnoreCase(result)) {
+                    Log.e(LOG_TAG, "Database integrity check failed: " + result);
+                }
+                break;
+        }
+    }
+
+    // Estimate the bytes of the main connection's page cache: the page size times the number of
+    // pages the cache may hold, but no more pages than the database has.
+    private void estimateCacheFootprint(SQLiteDatabase database) {
+        long pageSize = parseLong(runPragma(database, "PRAGMA page_size", null));
+        long pageCount = parseLong(runPragma(database, "PRAGMA page_count", null));
+        long cacheSize = parseLong(runPragma(database, "PRAGMA cache_size", null));
+        // A negative cache size is a limit in KiB rather than in pages.
+        long cachePages = cacheSize >= 0 ? cacheSize
+                : pageSize == 0 ? 0 : -cacheSize * 1024 / pageSize;
+        mCacheFootprintBytes = pageSize * Math.min(cachePages, pageCount);
+    }
+
+    // Returns the number in the given pragma result, or 0 if there is none.
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Run the given pragma and return the first column of its first row, or null if it returned
+    // no rows. A cancelled signal, if given, interrupts it with OperationCanceledException.
+    private static String runPragma(SQLiteDatabase database, String sql,
+                                    CancellationSignal signal) {
+        Cursor cursor = database.rawQuery(sql, null, signal);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import com.example.android.pets.data.PetContract.DraftEntry;
+
+/**
+ * Writes editor drafts to the provider on a background thread.
+ *
+ * Every call to {@link #schedule(ContentValues)} replaces the draft that is still waiting to be
+ * written, so a burst of keystrokes is coalesced into a single write once the user pauses typing.
+ * All methods must be called from the same (UI) thread.
+ */
+
+public class PetDraftWriter {
+
+    public static final String LOG_TAG = PetDraftWriter.class.getSimpleName();
+
+    // How long typing must pause before the latest draft is written.
+    private static final long DEBOUNCE_MILLIS = 750;
+
+    // Message codes handled on the background thread.
+    private static final int MSG_SAVE = 1;
+    private static final int MSG_DISCARD = 2;
+
+    private final ContentResolver mContentResolver;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    // The most recently scheduled draft, kept so flush() can write it right away.
+    private ContentValues mPendingDraft;
+
+    /**
+     * Construct a new instance of PetDraftWriter and start its background thread.
+     *
+     * @param context of the app
+     */
+
+    public PetDraftWriter(Context context) {
+        mContentResolver = context.getApplicationContext().getContentResolver();
+
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_SAVE:
+                        mContentResolver.insert(DraftEntry.CONTENT_URI, (ContentValues) msg.obj);
+                        break;
+                    case MSG_DISCARD:
+                        mContentResolver.delete(ContentUris.withAppendedId(DraftEntry.CONTENT_URI,
+                                (Long) msg.obj), null, null);
+                        break;
+                }
+            }
+        };
+    }
+
+    // Write the given draft once no newer draft has been scheduled for DEBOUNCE_MILLIS.
+    public void schedule(ContentValues draft) {
+        mPendingDraft = draft;
+        mHandler.removeMessages(MSG_SAVE);
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SAVE, draft), DEBOUNCE_MILLIS);
+    }
+
+    // Write the pending draft now (still off the UI thread), e.g. when the editor is paused.
+    public void flush() {
+        if (mPendingDraft != null && mHandler.hasMessages(MSG_SAVE)) {
+            mHandler.removeMessages(MSG_SAVE);
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_SAVE, mPendingDraft));
+        }
+        mPendingDraft = null;
+    }
+
+    // Drop any pending draft and delete the stored draft for the given pet.
+    public void discard(long petId) {
+        mPendingDraft = null;
+        mHandler.removeMessages(MSG_SAVE);
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_DISCARD, petId));
+    }
+
+    // Stop the background thread once the writes already queued have been performed.
+    public void quit() {
+        flush();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mThread.quit();
+            }
+        });
+    }
+}
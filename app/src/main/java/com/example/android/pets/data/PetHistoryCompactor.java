@@ -0,0 +1,144 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.HistoryEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thins out old pet versions in the history table on a background thread.
+ *
+ * The retention policy keeps every version younger than the maximum age, and for each pet the
+ * newest versions up to the configured count however old they are. History of pets that no
+ * longer exist is dropped once it is older than the maximum age. Rows are deleted in small
+ * batches, so the pets table is never locked for long.
+ */
+
+public class PetHistoryCompactor {
+
+    public static final String LOG_TAG = PetHistoryCompactor.class.getSimpleName();
+
+    // Default number of versions kept per pet regardless of their age.
+    public static final int DEFAULT_KEEP_VERSIONS = 10;
+
+    // Default age below which versions are always kept.
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    // Number of versions written after which a compaction is scheduled.
+    private static final int COMPACT_AFTER_VERSIONS = 500;
+
+    // How long writes must pause before a scheduled compaction starts.
+    private static final long IDLE_DELAY_MILLIS = 5000;
+
+    // Maximum number of rows deleted per statement.
+    private static final int BATCH_SIZE = 500;
+
+    private final PetDbHelper mDbHelper;
+
+    private final int mKeepVersions;
+
+    private final long mMaxAgeMillis;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    // Versions written since the last compaction was scheduled.
+    private final AtomicInteger mVersionsWritten = new AtomicInteger();
+
+    private final Runnable mCompactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    /**
+     * Construct a new instance of PetHistoryCompactor with the default retention policy.
+     *
+     * @param dbHelper of the database holding the history
+     */
+
+    public PetHistoryCompactor(PetDbHelper dbHelper) {
+        this(dbHelper, DEFAULT_KEEP_VERSIONS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Construct a new instance of PetHistoryCompactor.
+     *
+     * @param dbHelper     of the database holding the history
+     * @param keepVersions number of newest versions kept per pet regardless of age, at least 1
+     * @param maxAgeMillis age below which versions are always kept
+     */
+
+    public PetHistoryCompactor(PetDbHelper dbHelper, int keepVersions, long maxAgeMillis) {
+        if (keepVersions < 1) {
+            // The newest version is needed to number the next one.
+            throw new IllegalArgumentException("Compactor must keep at least one version");
+        }
+        mDbHelper = dbHelper;
+        mKeepVersions = keepVersions;
+        mMaxAgeMillis = maxAgeMillis;
+
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    // Record that the given number of versions were written, and schedule a compaction once
+    // enough have accumulated. The compaction is pushed back while writes keep coming.
+    public void onVersionsWritten(int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (mVersionsWritten.addAndGet(count) >= COMPACT_AFTER_VERSIONS) {
+            mHandler.removeCallbacks(mCompactRunnable);
+            mHandler.postDelayed(mCompactRunnable, IDLE_DELAY_MILLIS);
+        }
+    }
+
+    // Compact the history now, on the calling thread. Return the number of versions deleted.
+    public int compact() {
+        mVersionsWritten.set(0);
+
+        String cutoff = String.valueOf(System.currentTimeMillis() - mMaxAgeMillis);
+        String keep = String.valueOf(mKeepVersions);
+
+        // Old versions that are either orphaned or not among the newest of their pet.
+        String expired = "SELECT " + HistoryEntry._ID + " FROM " + HistoryEntry.TABLE_NAME + " h"
+                + " WHERE h." + HistoryEntry.COLUMN_HISTORY_CHANGED_AT + " < ?"
+                + " AND (h." + HistoryEntry.COLUMN_HISTORY_PET_ID + " NOT IN (SELECT "
+                + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME + ")"
+                + " OR h." + HistoryEntry.COLUMN_HISTORY_VERSION + " <= (SELECT MAX("
+                + HistoryEntry.COLUMN_HISTORY_VERSION + ") FROM " + HistoryEntry.TABLE_NAME
+                + " WHERE " + HistoryEntry.COLUMN_HISTORY_PET_ID + " = h."
+                + HistoryEntry.COLUMN_HISTORY_PET_ID + ") - ?)"
+                + " LIMIT " + BATCH_SIZE;
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int total = 0;
+        int deleted;
+        do {
+            // Each batch is its own short transaction, so foreground writes can interleave.
+            deleted = database.delete(HistoryEntry.TABLE_NAME,
+                    HistoryEntry._ID + " IN (" + expired + ")", new String[]{cutoff, keep});
+            total += deleted;
+        } while (deleted == BATCH_SIZE);
+
+        Log.v(LOG_TAG, total + " versions deleted from pet history");
+        return total;
+    }
+
+    // Stop the background thread. A compaction that is still waiting to start is dropped.
+    public void quit() {
+        mHandler.removeCallbacks(mCompactRunnable);
+        mThread.quit();
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Stores pet photos as JPEG files in the app's private files directory.
+ *
+ * Only the file name is kept in the pets table (PetEntry.COLUMN_PET_PHOTO), so the database stays
+ * small. Imported photos are downsampled while they are decoded, so a camera sized image never
+ * has to fit in memory at full resolution. The thumbnails of the catalog are cached next to them,
+ * in the app's cache directory, and deleted along with their photo. All methods do disk I/O; call
+ * them off the UI thread.
+ */
+
+public final class PetPhotoStore {
+
+    public static final String LOG_TAG = PetPhotoStore.class.getSimpleName();
+
+    // Name of the directory that holds the photos.
+    private static final String PHOTO_DIR = "photos";
+
+    // Name of the directory, inside the app's cache directory, that holds the cached thumbnails.
+    private static final String THUMBNAIL_DIR = "thumbnails";
+
+    // Imported images are downsampled until their shorter side is close to this size, in pixels.
+    private static final int PHOTO_SIZE = 1080;
+
+    private static final int JPEG_QUALITY = 85;
+
+    private PetPhotoStore() {
+    }
+
+    // Returns the file of the photo with the given name.
+    public static File getPhotoFile(Context context, String name) {
+        return new File(new File(context.getFilesDir(), PHOTO_DIR), name);
+    }
+
+    // Returns the directory of the cached thumbnails.
+    public static File getThumbnailDir(Context context) {
+        return new File(context.getCacheDir(), THUMBNAIL_DIR);
+    }
+
+    // Returns the cached thumbnail file of the photo with the given name. It may not exist.
+    public static File getThumbnailFile(Context context, String name) {
+        return new File(getThumbnailDir(context), name);
+    }
+
+    /**
+     * Copy the image at the given URI into the photo directory, downsampled to about PHOTO_SIZE.
+     *
+     * @return the name of the new photo, to be stored in PetEntry.COLUMN_PET_PHOTO, or null if the
+     * image couldn't be read
+     */
+    public static String importPhoto(Context context, Uri source) {
+        Bitmap bitmap;
+        try {
+            bitmap = decodeSampled(context, source, PHOTO_SIZE);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read photo " + source, e);
+            return null;
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        String name = UUID.randomUUID().toString() + ".jpg";
+        File file = getPhotoFile(context, name);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + dir);
+            return null;
+        }
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write photo " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            bitmap.recycle();
+            closeQuietly(out);
+        }
+        return name;
+    }
+
+    // Delete the photo with the given name and its cached thumbnail, if there is one.
+    public static void deletePhoto(Context context, String name) {
+        if (name == null) {
+            return;
+        }
+        if (!getPhotoFile(context, name).delete()) {
+            Log.w(LOG_TAG, "Failed to delete photo " + name);
+        }
+        // Most photos never had their thumbnail cached, so a missing one is no surprise.
+        getThumbnailFile(context, name).delete();
+    }
+
+    /**
+     * Decode the image at the given URI, downsampled by a power of two so that its shorter side is
+     * between the requested size and twice that. Only the downsampled pixels are ever allocated.
+     *
+     * @return the bitmap, or null if the data is not an image
+     */
+    public static Bitmap decodeSampled(Context context, Uri source, int size) throws IOException {
+        // First pass: read only the image dimensions.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = context.getContentResolver().openInputStream(source);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            closeQuietly(in);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Second pass: decode at the largest power of two reduction that stays above the size.
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+        options.inJustDecodeBounds = false;
+        in = context.getContentResolver().openInputStream(source);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Returns the largest power of two by which an image of the given dimensions can be reduced
+    // while its shorter side stays at least the given size.
+    public static int calculateInSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        int shorter = Math.min(width, height);
+        while (shorter / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing useful can be done here.
+            }
+        }
+    }
+}
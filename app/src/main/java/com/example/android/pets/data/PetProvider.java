@@ -1,15 +1,40 @@
 package com.example.android.pets.data;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
 
+import com.example.android.pets.data.PetContract.DraftEntry;
+import com.example.android.pets.data.PetContract.HistoryEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.ShelterEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // Content Provider for Pets app.
 
@@ -24,6 +49,39 @@ public class PetProvider extends ContentProvider {
     // URI matcher code for the content URI for a single pet in the pets table.
     private static final int PET_ID = 101;
 
+    // URI matcher code for the content URI for the history of a single pet.
+    private static final int PET_HISTORY = 102;
+
+    // URI matcher code for the content URI for the pets available for adoption.
+    private static final int PETS_AVAILABLE = 103;
+
+    // URI matcher code for the content URI for the sections of the pets list.
+    private static final int PETS_SECTIONS = 104;
+
+    // URI matcher code for the content URI for merging pets by external ID.
+    private static final int PETS_UPSERT = 105;
+
+    // URI matcher code for the content URI for the drafts table.
+    private static final int DRAFTS = 200;
+
+    // URI matcher code for the content URI for the draft of a single pet, keyed by pet ID.
+    private static final int DRAFT_ID = 201;
+
+    // URI matcher code for the content URI for the shelters table.
+    private static final int SHELTERS = 300;
+
+    // URI matcher code for the content URI for a single shelter.
+    private static final int SHELTER_ID = 301;
+
+    // URI matcher code for the content URIs of the pets of a single shelter, and below them.
+    private static final int SHELTER_PETS = 302;
+
+    // URI matcher code for the content URI for the pets of all shelters.
+    private static final int ALL_SHELTER_PETS = 303;
+
+    // Largest number of shelters queried at the same time by a query on all shelters.
+    private static final int MAX_PARALLEL_SHELTERS = 4;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -39,29 +97,338 @@ public class PetProvider extends ContentProvider {
 
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_AVAILABLE, PETS_AVAILABLE);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SECTIONS, PETS_SECTIONS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_UPSERT, PETS_UPSERT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_HISTORY, PET_HISTORY);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_DRAFTS, DRAFTS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_DRAFTS + "/#", DRAFT_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_SHELTERS, SHELTERS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#", SHELTER_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/" + PetContract.PATH_PETS, ALL_SHELTER_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#/" + PetContract.PATH_PETS, SHELTER_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#/" + PetContract.PATH_PETS + "/*", SHELTER_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_SHELTERS + "/#/"
+                + PetContract.PATH_PETS + "/#/" + PetContract.PATH_HISTORY, SHELTER_PETS);
 
     }
 
     // Database helper object
     private PetDbHelper mDbHelper;
 
+    // In-memory breed names of the database, shared with the catalog for binding.
+    private BreedDictionary mBreeds;
+
+    // Thins out old versions in the pet history table in the background.
+    private PetHistoryCompactor mHistoryCompactor;
+
+    // Refreshes planner statistics and checks the database once enough rows have been written.
+    private PetDbMaintenance mMaintenance;
+
+    // Name of the database file for a provider created by createIsolated(), null for the app's own.
+    private String mDatabaseName;
+
+    // Whether writes schedule history compaction and database maintenance. Off for isolated
+    // providers whose timings must not include that background work.
+    private boolean mBackgroundWork = true;
+
+    // Whether changes are announced to the ContentResolver. Off for isolated providers, whose
+    // URIs would otherwise wake up observers of the app's real database.
+    private boolean mNotifyChanges = true;
+
+    // Coalesces change notifications of bursts of writes and batches.
+    private PetChangeNotifier mNotifier;
+
+    // Photos whose files are to be deleted once the batch in progress on each thread commits.
+    // Deleted right away while no batch is in progress, see deletePhoto().
+    private final ThreadLocal<LinkedHashSet<String>> mBatchPhotos = new ThreadLocal<>();
+
+    // Providers of the shelters' partitions opened so far, by shelter ID. Each one is an isolated
+    // provider on the shelter's own database file. Guarded by itself.
+    private final LongSparseArray<PetProvider> mShelters = new LongSparseArray<>();
+
+    // Runs the per-shelter parts of queries on all shelters. Created when first needed.
+    private ExecutorService mShelterExecutor;
+
+    // Releases SQLite memory under memory pressure. The footprint is an estimate of the page cache
+    // of the main connection, which holds most of SQLite's memory in the process.
+    private final MemoryBudgetManager.Trimmable mMemoryTrimmer =
+            new MemoryBudgetManager.Trimmable() {
+                @Override
+                public void trimMemory(int level) {
+                    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                        mMaintenance.releaseMemory(
+                                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                                        || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+                    }
+                }
+
+                @Override
+                public long getFootprintBytes() {
+                    return mMaintenance.getCacheFootprintBytes();
+                }
+            };
+
     //Initialize the provider and the database helper object.
     @Override
     public boolean onCreate() {
         // Create and initialize a PetDbHelper object to gain access to the pets database.
-        mDbHelper = new PetDbHelper(getContext());
+        if (mDatabaseName == null) {
+            mDbHelper = new PetDbHelper(getContext());
+            mBreeds = BreedDictionary.getInstance();
+        } else {
+            // Breed IDs are only meaningful within one database, so don't share the dictionary.
+            mDbHelper = new PetDbHelper(getContext(), mDatabaseName);
+            mBreeds = new BreedDictionary();
+        }
+        mHistoryCompactor = new PetHistoryCompactor(mDbHelper);
+        mMaintenance = new PetDbMaintenance(mDbHelper);
+        mNotifier = new PetChangeNotifier(getContext().getContentResolver());
+
+        // Only the app's own database lives as long as the process, so only it gives memory back.
+        if (mDatabaseName == null) {
+            MemoryBudgetManager.getInstance(getContext()).register(LOG_TAG, mMemoryTrimmer);
+            mMaintenance.estimateFootprintLater();
+        }
         return true;
     }
 
+    /**
+     * Create a provider that is not registered with the system and works on its own database
+     * file. Used by benchmarks, which need the real provider code paths without touching the
+     * shelter database. Call {@link #shutdown()} when done.
+     *
+     * @param context      of the app
+     * @param databaseName of the database file to use
+     */
+    static PetProvider createIsolated(Context context, String databaseName) {
+        return createIsolated(context, databaseName, true);
+    }
+
+    /**
+     * Create an isolated provider, see {@link #createIsolated(Context, String)}, optionally without
+     * history compaction and database maintenance, so a benchmark measures only its own
+     * operations.
+     *
+     * @param context        of the app
+     * @param databaseName   of the database file to use
+     * @param backgroundWork whether writes schedule compaction and maintenance
+     */
+    static PetProvider createIsolated(Context context, String databaseName,
+                                      boolean backgroundWork) {
+        PetProvider provider = new PetProvider();
+        provider.mDatabaseName = databaseName;
+        provider.mNotifyChanges = false;
+        provider.mBackgroundWork = backgroundWork;
+        provider.attachInfo(context.getApplicationContext(), null);
+        return provider;
+    }
+
+    // Close the database. Only needed for providers created by createIsolated().
+    @Override
+    public void shutdown() {
+        synchronized (mShelters) {
+            for (int i = 0; i < mShelters.size(); i++) {
+                mShelters.valueAt(i).shutdown();
+            }
+            mShelters.clear();
+            if (mShelterExecutor != null) {
+                mShelterExecutor.shutdown();
+            }
+        }
+        mNotifier.quit();
+        mHistoryCompactor.quit();
+        mMaintenance.quit();
+        mDbHelper.close();
+    }
+
+    // Notify all listeners that the data at the given content URI has changed. The notification
+    // is coalesced with the other changes of the same burst or batch, see PetChangeNotifier.
+    private void notifyChange(Uri uri) {
+        if (mNotifyChanges) {
+            mNotifier.notifyChange(uri);
+        }
+    }
+
+    // Let background work know the given numbers of rows and history versions were written.
+    private void onWritten(int rows, int versions) {
+        if (mBackgroundWork) {
+            mHistoryCompactor.onVersionsWritten(versions);
+            mMaintenance.onWrites(rows);
+        }
+    }
+
+    // Returns the recorder to record this provider's operations to, or null if they aren't being
+    // recorded. Isolated providers are never recorded, so a replay doesn't end up in the trace.
+    private PetTraceRecorder getTraceRecorder() {
+        return mDatabaseName == null ? PetTraceRecorder.getActive() : null;
+    }
+
+    /**
+     * Set how long change notifications are collected before they are sent, so that a burst of
+     * writes reaches observers as one change. 0 sends every notification right away, except within
+     * applyBatch(), whose changes are always sent once when it commits.
+     *
+     * @param windowMillis length of the window in milliseconds
+     */
+    public void setNotificationWindow(long windowMillis) {
+        mNotifier.setWindowMillis(windowMillis);
+    }
+
+    // Apply all operations in one transaction, so either all of them or none take effect. Change
+    // notifications are sent once per URI after the transaction commits, instead of once per
+    // operation. Breeds added by the operations only reach the breed dictionary if it commits, and
+    // the files of the photos they replace or delete are only deleted then.
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // A nested batch simply joins the transaction of the outer one.
+        if (!mNotifier.beginBatch()) {
+            return super.applyBatch(operations);
+        }
+
+        // The operations of the batch are recorded as part of it.
+        PetTraceRecorder recorder = getTraceRecorder();
+        boolean tracing = recorder != null && recorder.beginBatch();
+        long traceStart = System.nanoTime();
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean successful = false;
+        mBatchPhotos.set(new LinkedHashSet<String>());
+        database.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            database.endTransaction();
+            LinkedHashSet<String> photos = mBatchPhotos.get();
+            mBatchPhotos.remove();
+            // A rolled back batch took its new breed rows, and their IDs, with it.
+            mBreeds.endTransaction(successful);
+            // A rolled back batch changed nothing, so there is nothing to notify.
+            mNotifier.endBatch(successful);
+            if (tracing) {
+                recorder.endBatch(successful, traceStart);
+            }
+            // A rolled back batch left every photo in use, so only a committed one frees files.
+            if (successful) {
+                deleteUnusedPhotos(database, photos);
+            }
+        }
+    }
+
+    // Handle the provider methods described in PetContract.
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_ADJUST_WEIGHT.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Adjusting weights requires extras");
+            }
+            long[] ids = extras.getLongArray(PetContract.EXTRA_IDS);
+            int delta = extras.getInt(PetContract.EXTRA_WEIGHT_DELTA);
+            if (ids == null) {
+                throw new IllegalArgumentException("Adjusting weights requires pet IDs");
+            }
+
+            long traceStart = System.nanoTime();
+            Bundle result = new Bundle();
+            result.putInt(PetContract.EXTRA_ROWS_AFFECTED, adjustWeights(ids, delta));
+
+            PetTraceRecorder recorder = getTraceRecorder();
+            if (recorder != null) {
+                recorder.recordCall(method, ids.length, delta, traceStart);
+            }
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // Add the given delta to the weight of the pets with the given IDs, without going below 0.
+    // Runs as one transaction with one change notification. Return the number of pets changed.
+
+    private int adjustWeights(long[] ids, int delta) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = 0;
+        int versionsWritten = 0;
+        database.beginTransaction();
+        try {
+            // SQLite limits the number of arguments per statement, so go in chunks.
+            for (int start = 0; start < ids.length; start += PetContract.MAX_IDS_PER_SELECTION) {
+                int end = Math.min(start + PetContract.MAX_IDS_PER_SELECTION, ids.length);
+                String selection = PetContract.buildIdSelection(end - start);
+                String[] selectionArgs = PetContract.buildIdSelectionArgs(ids, start, end);
+
+                // Only pets whose weight actually changes get a new version, so a delta of 0,
+                // or a loss at weight 0, leaves no history.
+                String[] historyArgs = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
+                historyArgs[selectionArgs.length] = String.valueOf(delta);
+                versionsWritten += saveHistory(database, selection + " AND "
+                        + PetEntry.COLUMN_PET_WEIGHT + " IS NOT MAX(0, "
+                        + PetEntry.COLUMN_PET_WEIGHT + " + ?)", historyArgs);
+
+                SQLiteStatement statement = database.compileStatement("UPDATE "
+                        + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_WEIGHT + " = MAX(0, "
+                        + PetEntry.COLUMN_PET_WEIGHT + " + ?) WHERE " + selection);
+                try {
+                    statement.bindLong(1, delta);
+                    for (int i = 0; i < selectionArgs.length; i++) {
+                        statement.bindString(i + 2, selectionArgs[i]);
+                    }
+                    rowsUpdated += statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        onWritten(rowsUpdated, versionsWritten);
+
+        if (rowsUpdated != 0) {
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
     // Perform query for given URI. Use given projection, selection, selection arguments, sort order.
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long traceStart = System.nanoTime();
+        Cursor cursor = queryAt(uri, projection, selection, selectionArgs, sortOrder);
+
+        PetTraceRecorder recorder = getTraceRecorder();
+        if (recorder != null) {
+            // Counting runs the query, which the caller would do next anyway, so the recorded
+            // time includes it.
+            recorder.recordQuery(uri, projection, selection, selectionArgs, sortOrder,
+                    cursor.getCount(), traceStart);
+        }
+        return cursor;
+    }
+
+    private Cursor queryAt(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                           String sortOrder) {
 
         // Get readable database.
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
+        // Let background maintenance know the database is in use.
+        mMaintenance.onQuery();
+
         // This cursor will hold the result of the query.
         Cursor cursor;
 
@@ -69,10 +436,17 @@ public class PetProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                // For the PETS code, query the pets table directly with given the projection, selection,
+                // For the PETS code, query the pet details view with given the projection, selection,
                 // selection arguments, and sort order. The cursor can contain multiple rows of pets table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                // Make sure every breed ID in the result can be resolved by the breed dictionary.
+                mBreeds.ensureLoaded(database);
+                cursor = database.query(PetEntry.DETAILS_VIEW_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                // Narrow projections like the catalog's are packed into a compact cursor, which
+                // the list reads while scrolling without allocating.
+                if (CompactPetCursor.supports(projection)) {
+                    cursor = CompactPetCursor.compact(cursor);
+                }
                 break;
             case PET_ID:
                 // For the PET_ID code, extract ID from the URI.
@@ -82,27 +456,169 @@ public class PetProvider extends ContentProvider {
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 // Query pets table where _id equals 3 to return Cursor containing that row.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                mBreeds.ensureLoaded(database);
+                cursor = database.query(PetEntry.DETAILS_VIEW_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PETS_AVAILABLE:
+                // For the PETS_AVAILABLE code, restrict the query to available pets, newest
+                // intake first unless another order is given. The index on intake date only
+                // holds available pets, so this reads just that short range of it.
+                selection = TextUtils.isEmpty(selection) ? PetDbHelper.SELECTION_AVAILABLE
+                        : PetDbHelper.SELECTION_AVAILABLE + " AND (" + selection + ")";
+                if (sortOrder == null) {
+                    sortOrder = PetEntry.COLUMN_PET_INTAKE_DATE + " DESC, " + PetEntry._ID
+                            + " DESC";
+                }
+                mBreeds.ensureLoaded(database);
+                cursor = database.query(PetEntry.DETAILS_VIEW_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PETS_SECTIONS:
+                // For the PETS_SECTIONS code, count the pets of each section in one aggregate
+                // query, in the order the matching SORT_ORDER lists the pets.
+                cursor = querySections(database, uri, selection, selectionArgs);
+                break;
+            case PET_HISTORY:
+                // For the PET_HISTORY code, the pet ID is the second path segment. Return the
+                // versions of that pet, newest first unless another order is given.
+                selection = HistoryEntry.COLUMN_HISTORY_PET_ID + "=?";
+                selectionArgs = new String[]{uri.getPathSegments().get(1)};
+                if (sortOrder == null) {
+                    sortOrder = HistoryEntry.COLUMN_HISTORY_VERSION + " DESC";
+                }
+                cursor = database.query(HistoryEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case DRAFTS:
+                cursor = database.query(DraftEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case DRAFT_ID:
+                // Drafts are addressed by the pet ID they belong to, not by their own row ID.
+                selection = DraftEntry.COLUMN_DRAFT_PET_ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(DraftEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case SHELTERS:
+                cursor = database.query(ShelterEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SHELTER_ID:
+                selection = ShelterEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(ShelterEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SHELTER_PETS:
+                // For the SHELTER_PETS code, route the query to the shelter's partition, which
+                // answers it like a query on the pets URIs of the app's database. The default
+                // shelter's pets are in this database, so answer those here.
+                long shelterId = getShelterId(uri);
+                String[] shelterProjection = withShelterColumn(projection, shelterId, false);
+                if (shelterId == ShelterEntry.DEFAULT_SHELTER_ID) {
+                    cursor = queryAt(toPartitionUri(uri), shelterProjection, selection,
+                            selectionArgs, sortOrder);
+                } else {
+                    cursor = getShelter(shelterId).query(toPartitionUri(uri), shelterProjection,
+                            selection, selectionArgs, sortOrder);
+                }
+                break;
+            case ALL_SHELTER_PETS:
+                // The parts of this cursor watch their own shelter, see queryAllShelters().
+                return queryAllShelters(projection, selection, selectionArgs, sortOrder);
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
         // Set notification URI on Cursor, so we know what content URI the Cursor was created for.
-        // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // If the data at this URI changes, then we know we need to update the Cursor. Changes to
+        // single pets are notified on their own URIs, which are not below the available pets URI,
+        // so that cursor watches all pets instead. The same goes for the pets of a shelter. The
+        // default shelter's pets also change through the pets URI, so watch that one.
+        Uri notificationUri = uri;
+        if (match == PETS_AVAILABLE || match == PETS_SECTIONS) {
+            notificationUri = PetEntry.CONTENT_URI;
+        } else if (match == SHELTER_PETS) {
+            long shelterId = getShelterId(uri);
+            notificationUri = shelterId == ShelterEntry.DEFAULT_SHELTER_ID ? PetEntry.CONTENT_URI
+                    : ShelterEntry.buildPetsUri(shelterId);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
         // Return the cursor.
         return cursor;
     }
 
+    // Returns the label and pet count of every section of the grouping given in the URI. Name
+    // sections group on the first character with the same collation as SORT_ORDER_BY_NAME, so
+    // every section is one contiguous run of rows in that order.
+
+    private static Cursor querySections(SQLiteDatabase database, Uri uri, String selection,
+                                        String[] selectionArgs) {
+        String groupBy = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_GROUP_BY);
+        String label;
+        String group;
+        String order;
+        if (groupBy == null || PetEntry.SECTIONS_BY_NAME.equals(groupBy)) {
+            String initial = "SUBSTR(" + PetEntry.COLUMN_PET_NAME + ", 1, 1)";
+            label = "UPPER(" + initial + ")";
+            group = initial + " COLLATE NOCASE";
+            order = group;
+        } else if (PetEntry.SECTIONS_BY_BREED.equals(groupBy)) {
+            label = PetEntry.COLUMN_PET_BREED;
+            group = PetEntry.COLUMN_PET_BREED_ID;
+            order = PetEntry.COLUMN_PET_BREED + " IS NULL, " + PetEntry.COLUMN_PET_BREED
+                    + " COLLATE NOCASE, " + PetEntry.COLUMN_PET_BREED_ID;
+        } else {
+            throw new IllegalArgumentException("Unknown grouping " + groupBy);
+        }
+
+        String[] columns = {
+                label + " AS " + PetEntry.COLUMN_SECTION_LABEL,
+                "COUNT(*) AS " + PetEntry.COLUMN_SECTION_COUNT};
+        return database.query(PetEntry.DETAILS_VIEW_NAME, columns, selection, selectionArgs,
+                group, null, order);
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        PetTraceRecorder recorder = getTraceRecorder();
+        String shape = recorder == null ? null : PetTrace.getShape(contentValues);
+        long traceStart = System.nanoTime();
+        Uri newUri = insertAt(uri, contentValues);
+
+        if (recorder != null) {
+            recorder.recordInsert(uri, shape, traceStart);
+        }
+        return newUri;
+    }
+
+    private Uri insertAt(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
                 return insertPet(uri, contentValues);
+            case PETS_UPSERT:
+                long id = upsertPets(new ContentValues[]{contentValues})[0];
+                return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+            case DRAFTS:
+                return saveDraft(uri, contentValues);
+            case SHELTERS:
+                return insertShelter(uri, contentValues);
+            case SHELTER_PETS:
+                // Route the insert to the shelter's partition, and translate the URI it returns.
+                long shelterId = getShelterId(uri);
+                Uri newUri = shelterId == ShelterEntry.DEFAULT_SHELTER_ID
+                        ? insertAt(toPartitionUri(uri), contentValues)
+                        : getShelter(shelterId).insert(toPartitionUri(uri), contentValues);
+                if (newUri == null) {
+                    return null;
+                }
+                newUri = toShelterUri(shelterId, newUri);
+                notifyChange(newUri);
+                return newUri;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -112,7 +628,249 @@ public class PetProvider extends ContentProvider {
     // Return the new content URI for that specific row in the database.
 
     private Uri insertPet(Uri uri, ContentValues values) {
+        validateNewPet(values);
+
+        // Get writable database.
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Store the breed in the breeds table and keep only its ID in the pets row.
+        values = resolveBreed(database, values);
+
+        // A pet without an intake date came in just now.
+        if (!values.containsKey(PetEntry.COLUMN_PET_INTAKE_DATE)) {
+            // Don't change the caller's values.
+            values = new ContentValues(values);
+            values.put(PetEntry.COLUMN_PET_INTAKE_DATE, System.currentTimeMillis());
+        }
+
+        // Insert the new pet with the given values.
+        long id = database.insert(PetEntry.TABLE_NAME, null, values);
+
+        // If ID is -1, then insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        onWritten(1, 0);
+
+        // Notify all listeners that the data has changed for the new pet's content URI. Observers
+        // of the pets content URI are notified as well, and observers that follow single rows
+        // know which row was added.
+        Uri newUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(newUri);
+
+        // Return the new URI (with the appended ID) to the end of it.
+        return newUri;
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int match = sUriMatcher.match(uri);
+        if (match != PETS && match != PETS_UPSERT && match != SHELTER_PETS) {
+            // The default implementation inserts one by one, and each insert is recorded.
+            return super.bulkInsert(uri, values);
+        }
+
+        PetTraceRecorder recorder = getTraceRecorder();
+        String[] shapes = recorder == null ? null : PetTrace.getShapes(values);
+        long traceStart = System.nanoTime();
+        int count;
+        if (match == SHELTER_PETS) {
+            // Route the whole batch to the shelter's partition, which inserts it in one
+            // transaction of its own.
+            long shelterId = getShelterId(uri);
+            if (shelterId == ShelterEntry.DEFAULT_SHELTER_ID) {
+                count = bulkInsertAt(toPartitionUri(uri), values);
+            } else {
+                count = getShelter(shelterId).bulkInsert(toPartitionUri(uri), values);
+            }
+            if (count != 0) {
+                notifyChange(uri);
+            }
+        } else {
+            count = bulkInsertAt(uri, values);
+        }
+
+        if (recorder != null) {
+            recorder.recordBulkInsert(uri, shapes, traceStart);
+        }
+        return count;
+    }
+
+    // Insert the given pets at the given URI of this database, like bulkInsert() but without
+    // recording it. Return the number of pets inserted.
+    private int bulkInsertAt(Uri uri, ContentValues[] values) {
+        switch (sUriMatcher.match(uri)) {
+            case PETS:
+                return bulkInsertPets(uri, values);
+            case PETS_UPSERT:
+                return upsertPets(values).length;
+            default:
+                int count = 0;
+                for (ContentValues value : values) {
+                    if (insertAt(uri, value) != null) {
+                        count++;
+                    }
+                }
+                return count;
+        }
+    }
+
+    // Insert many pets in one transaction with a single change notification on the given URI,
+    // instead of a commit and a notification per pet. Either all of the pets are inserted or none.
+
+    private int bulkInsertPets(Uri uri, ContentValues[] values) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Validate every pet and store the breeds before the transaction, so a rolled back insert
+        // can't take a cached breed ID with it. Breeds repeat a lot, so this is mostly lookups.
+        long now = System.currentTimeMillis();
+        ContentValues[] rows = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            validateNewPet(values[i]);
+            ContentValues row = resolveBreed(database, values[i]);
+            if (!row.containsKey(PetEntry.COLUMN_PET_INTAKE_DATE)) {
+                // Don't change the caller's values.
+                if (row == values[i]) {
+                    row = new ContentValues(row);
+                }
+                row.put(PetEntry.COLUMN_PET_INTAKE_DATE, now);
+            }
+            rows[i] = row;
+        }
+
+        database.beginTransaction();
+        try {
+            for (ContentValues row : rows) {
+                database.insertOrThrow(PetEntry.TABLE_NAME, null, row);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        onWritten(rows.length, 0);
+
+        if (rows.length != 0) {
+            notifyChange(uri);
+        }
+        return rows.length;
+    }
+
+    // Merge the given pets by external ID in one transaction: a pet whose external ID is already
+    // known updates that row, any other is inserted. SQLite only has an upsert statement since
+    // 3.24, so each pet is first looked up on the unique external ID index instead. The
+    // transaction keeps that lookup and the write together, so concurrent merges of the same
+    // record can't both insert it. Rows whose values don't change are not written at all, so
+    // merging the same feed again leaves no history and sends no notification. Return the ID of
+    // each pet, in the order given.
+
+    private long[] upsertPets(ContentValues[] values) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
+        // Validate every pet and store the breeds before the transaction, like bulkInsert().
+        // Every record must be complete, as it may turn out to be new.
+        ContentValues[] rows = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (TextUtils.isEmpty(values[i].getAsString(PetEntry.COLUMN_PET_EXTERNAL_ID))) {
+                throw new IllegalArgumentException("Upserting a pet requires an external ID");
+            }
+            validateNewPet(values[i]);
+            rows[i] = resolveBreed(database, values[i]);
+        }
+
+        long now = System.currentTimeMillis();
+        long[] ids = new long[rows.length];
+        int rowsInserted = 0;
+        int rowsUpdated = 0;
+        int versionsWritten = 0;
+        ArrayList<String> replacedPhotos = new ArrayList<>();
+        SQLiteStatement lookup = database.compileStatement("SELECT " + PetEntry._ID + " FROM "
+                + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_EXTERNAL_ID + " = ?");
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                ContentValues row = rows[i];
+                lookup.bindString(1, row.getAsString(PetEntry.COLUMN_PET_EXTERNAL_ID));
+                long id;
+                try {
+                    id = lookup.simpleQueryForLong();
+                } catch (SQLiteDoneException e) {
+                    id = -1;
+                }
+
+                if (id == -1) {
+                    // A pet without an intake date came in just now.
+                    if (!row.containsKey(PetEntry.COLUMN_PET_INTAKE_DATE)) {
+                        row = new ContentValues(row);
+                        row.put(PetEntry.COLUMN_PET_INTAKE_DATE, now);
+                    }
+                    ids[i] = database.insertOrThrow(PetEntry.TABLE_NAME, null, row);
+                    rowsInserted++;
+                    continue;
+                }
+
+                // Only touch the row if one of the given values differs from it.
+                ArrayList<String> args = new ArrayList<>();
+                args.add(String.valueOf(id));
+                String selection = PetEntry._ID + " = ? AND NOT ("
+                        + buildUnchangedSelection(row, args) + ")";
+                String[] selectionArgs = args.toArray(new String[args.size()]);
+
+                versionsWritten += saveHistory(database, selection, selectionArgs);
+                if (row.containsKey(PetEntry.COLUMN_PET_PHOTO)) {
+                    replacedPhotos.addAll(queryPhotos(database, selection, selectionArgs));
+                }
+                rowsUpdated += database.update(PetEntry.TABLE_NAME, row, selection,
+                        selectionArgs);
+                ids[i] = id;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            lookup.close();
+        }
+
+        // Delete the files of replaced photos, unless a pet still uses them, e.g. because a
+        // later record of the batch set the same photo again.
+        deleteUnusedPhotos(database, replacedPhotos);
+
+        onWritten(rowsInserted + rowsUpdated, versionsWritten);
+
+        if (rowsInserted + rowsUpdated != 0) {
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+        return ids;
+    }
+
+    // Returns a selection on the pets table that matches a row holding all of the given values,
+    // and adds its arguments to the given list. The external ID is left out, as the row is
+    // already found by it.
+
+    private static String buildUnchangedSelection(ContentValues values, ArrayList<String> args) {
+        StringBuilder selection = new StringBuilder();
+        for (String column : values.keySet()) {
+            if (PetEntry.COLUMN_PET_EXTERNAL_ID.equals(column)) {
+                continue;
+            }
+            if (selection.length() != 0) {
+                selection.append(" AND ");
+            }
+            Object value = values.get(column);
+            if (value == null) {
+                selection.append(column).append(" IS NULL");
+            } else {
+                // Text arguments compare as numbers against the numeric columns, by affinity.
+                selection.append(column).append(" IS ?");
+                args.add(value.toString());
+            }
+        }
+        return selection.toString();
+    }
+
+    // Check that the given values describe a valid new pet, or throw IllegalArgumentException.
+    private static void validateNewPet(ContentValues values) {
         // Check that the name is not null
         String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
         if (name == null) {
@@ -128,42 +886,84 @@ public class PetProvider extends ContentProvider {
         if (weight != null && weight < 0) {
             throw new IllegalArgumentException("Pet requires valid weight");
         }
+        // If status provided, check that it is valid.
+        Integer status = values.getAsInteger(PetEntry.COLUMN_PET_STATUS);
+        if (status != null && !PetEntry.isValidStatus(status)) {
+            throw new IllegalArgumentException("Pet requires valid status");
+        }
 
         // No need to check breed, any value is valid (including null).
+    }
 
-        // Get writable database.
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    // Insert or replace the draft for the pet given in the content values. There is at most one
+    // draft per pet, so a newer draft replaces the older one. Drafts are written on every pause in
+    // typing, so no change notification is sent; nothing observes the drafts table.
 
-        // Insert the new pet with the given values.
-        long id = database.insert(PetEntry.TABLE_NAME, null, values);
+    private Uri saveDraft(Uri uri, ContentValues values) {
+        // Check that the draft says which pet it belongs to.
+        Long petId = values.getAsLong(DraftEntry.COLUMN_DRAFT_PET_ID);
+        if (petId == null || petId < 0) {
+            throw new IllegalArgumentException("Draft requires a valid pet ID");
+        }
+
+        if (!values.containsKey(DraftEntry.COLUMN_DRAFT_UPDATED)) {
+            // Don't change the caller's values.
+            values = new ContentValues(values);
+            values.put(DraftEntry.COLUMN_DRAFT_UPDATED, System.currentTimeMillis());
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insertWithOnConflict(DraftEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
 
-        // If ID is -1, then insertion failed. Log an error and return null.
         if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            Log.e(LOG_TAG, "Failed to save draft for " + uri);
             return null;
         }
 
-        // Notify all listeners that the data has changed for the pet content URI.
-        getContext().getContentResolver().notifyChange(uri, null);
-
-        // Return the new URI (with the appended ID) to the end of it.
-        return ContentUris.withAppendedId(uri, id);
+        return ContentUris.withAppendedId(uri, petId);
     }
 
     // Updates data at the given selection and selection arguments, with the new ContentValues.
 
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        PetTraceRecorder recorder = getTraceRecorder();
+        long traceStart = System.nanoTime();
+        int rowsUpdated = updateAt(uri, contentValues, selection, selectionArgs);
+
+        if (recorder != null) {
+            recorder.recordUpdate(uri, PetTrace.getShape(contentValues), selection,
+                    selectionArgs, traceStart);
+        }
+        return rowsUpdated;
+    }
+
+    private int updateAt(Uri uri, ContentValues contentValues, String selection,
+                         String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                return updatePet(uri, contentValues, wrapSelection(selection), selectionArgs);
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI to know which row to update.
                 // Selection will be "_id=?" and selection arguments will be String array with ID.
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 return updatePet(uri, contentValues, selection, selectionArgs);
+            case SHELTER_ID:
+                return updateShelter(uri, contentValues);
+            case SHELTER_PETS:
+                // Route the update to the shelter's partition.
+                long shelterId = getShelterId(uri);
+                int rowsUpdated = shelterId == ShelterEntry.DEFAULT_SHELTER_ID
+                        ? updateAt(toPartitionUri(uri), contentValues, selection, selectionArgs)
+                        : getShelter(shelterId).update(toPartitionUri(uri), contentValues,
+                        selection, selectionArgs);
+                if (rowsUpdated != 0) {
+                    notifyChange(uri);
+                }
+                return rowsUpdated;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -200,6 +1000,14 @@ public class PetProvider extends ContentProvider {
             }
         }
 
+        // If the PetEntry.COLUMN_PET_STATUS key is present, check that the status value is valid.
+        if (values.containsKey(PetEntry.COLUMN_PET_STATUS)) {
+            Integer status = values.getAsInteger(PetEntry.COLUMN_PET_STATUS);
+            if (status == null || !PetEntry.isValidStatus(status)) {
+                throw new IllegalArgumentException("Pet requires valid status");
+            }
+        }
+
         // No need to check the breed, any value is valid (including null).
 
         // If there are no values to update, then don't try to update the database.
@@ -210,13 +1018,61 @@ public class PetProvider extends ContentProvider {
         // Otherwise, get writable database to update the data.
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected.
-        int rowsUpdated = database.update(PetEntry.TABLE_NAME, values,
-                selection, selectionArgs);
+        // Store the breed in the breeds table and keep only its ID in the pets row. This happens
+        // before the update's own transaction; within a batch, the batch's transaction is already
+        // open and applyBatch() settles the dictionary when it ends.
+        values = resolveBreed(database, values);
+
+        // Save the current version of every row that is about to change, and perform the update,
+        // in one transaction so the history never disagrees with the pets table. Rows that
+        // already hold all of the new values still count as updated, but get no new version.
+        int rowsUpdated;
+        int versionsWritten = 0;
+        ArrayList<String> replacedPhotos = null;
+        database.beginTransaction();
+        try {
+            ArrayList<String> historyArgs = new ArrayList<>();
+            if (selectionArgs != null) {
+                historyArgs.addAll(Arrays.asList(selectionArgs));
+            }
+            String unchanged = buildUnchangedSelection(values, historyArgs);
+            // Only the external ID is set, which the history doesn't keep.
+            if (!unchanged.isEmpty()) {
+                String historySelection = "NOT (" + unchanged + ")";
+                if (!TextUtils.isEmpty(selection)) {
+                    historySelection = "(" + selection + ") AND " + historySelection;
+                }
+                versionsWritten = saveHistory(database, historySelection,
+                        historyArgs.toArray(new String[historyArgs.size()]));
+            }
+
+            // Remember the photos being replaced, so their files can be deleted.
+            if (values.containsKey(PetEntry.COLUMN_PET_PHOTO)) {
+                replacedPhotos = queryPhotos(database, selection, selectionArgs);
+            }
+
+            // Perform the update on the database and get the number of rows affected.
+            rowsUpdated = database.update(PetEntry.TABLE_NAME, values,
+                    selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (replacedPhotos != null) {
+            String newPhoto = values.getAsString(PetEntry.COLUMN_PET_PHOTO);
+            for (String photo : replacedPhotos) {
+                if (!photo.equals(newPhoto)) {
+                    deletePhoto(photo);
+                }
+            }
+        }
+
+        onWritten(rowsUpdated, versionsWritten);
 
         // If 1+ rows were updated, then notify all listeners that data at given URI has changed.
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows updated.
@@ -225,10 +1081,99 @@ public class PetProvider extends ContentProvider {
     }
 
 
+    // Returns content values for the pets table: a breed name is replaced with the ID of that
+    // breed in the breeds table, and an empty breed name with a null ID. The given content values
+    // are not modified.
+
+    private ContentValues resolveBreed(SQLiteDatabase database, ContentValues values) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            return values;
+        }
+
+        ContentValues resolved = new ContentValues(values);
+        String breed = resolved.getAsString(PetEntry.COLUMN_PET_BREED);
+        resolved.remove(PetEntry.COLUMN_PET_BREED);
+        if (TextUtils.isEmpty(breed)) {
+            resolved.putNull(PetEntry.COLUMN_PET_BREED_ID);
+        } else {
+            resolved.put(PetEntry.COLUMN_PET_BREED_ID, mBreeds.getOrCreateId(database, breed));
+        }
+        return resolved;
+    }
+
+    // Returns a selection on the pets table that matches the same pets as the given selection on
+    // the pet details view. This lets callers select by breed name, which only the view has.
+
+    private static String wrapSelection(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return selection;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM "
+                + PetEntry.DETAILS_VIEW_NAME + " WHERE " + selection + ")";
+    }
+
+    // Append the current version of the pets matching the given selection to the history table.
+    // Must be called inside the transaction of the update that replaces those versions. The
+    // versions are read from the pet details view, so the history keeps breed names. Return the
+    // number of versions written.
+
+    private int saveHistory(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        String sql = "INSERT INTO " + HistoryEntry.TABLE_NAME + " ("
+                + HistoryEntry.COLUMN_HISTORY_PET_ID + ", "
+                + HistoryEntry.COLUMN_HISTORY_VERSION + ", "
+                + HistoryEntry.COLUMN_HISTORY_NAME + ", "
+                + HistoryEntry.COLUMN_HISTORY_BREED + ", "
+                + HistoryEntry.COLUMN_HISTORY_GENDER + ", "
+                + HistoryEntry.COLUMN_HISTORY_WEIGHT + ", "
+                + HistoryEntry.COLUMN_HISTORY_PHOTO + ", "
+                + HistoryEntry.COLUMN_HISTORY_STATUS + ", "
+                + HistoryEntry.COLUMN_HISTORY_INTAKE_DATE + ", "
+                + HistoryEntry.COLUMN_HISTORY_CHANGED_AT + ") SELECT "
+                + PetEntry._ID + ", "
+                + "IFNULL((SELECT MAX(" + HistoryEntry.COLUMN_HISTORY_VERSION + ") FROM "
+                + HistoryEntry.TABLE_NAME + " WHERE " + HistoryEntry.TABLE_NAME + "."
+                + HistoryEntry.COLUMN_HISTORY_PET_ID + " = " + PetEntry.DETAILS_VIEW_NAME + "."
+                + PetEntry._ID + "), 0) + 1, "
+                + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ", "
+                + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ", "
+                + PetEntry.COLUMN_PET_PHOTO + ", "
+                + PetEntry.COLUMN_PET_STATUS + ", "
+                + PetEntry.COLUMN_PET_INTAKE_DATE + ", ? FROM "
+                + PetEntry.DETAILS_VIEW_NAME
+                + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection);
+
+        SQLiteStatement statement = database.compileStatement(sql);
+        try {
+            // The change time comes first, followed by the arguments of the selection.
+            statement.bindLong(1, System.currentTimeMillis());
+            if (selectionArgs != null) {
+                for (int i = 0; i < selectionArgs.length; i++) {
+                    statement.bindString(i + 2, selectionArgs[i]);
+                }
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
     // Delete the data at the given selection and selection arguments.
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long traceStart = System.nanoTime();
+        int rowsDeleted = deleteAt(uri, selection, selectionArgs);
+
+        PetTraceRecorder recorder = getTraceRecorder();
+        if (recorder != null) {
+            recorder.recordDelete(uri, selection, selectionArgs, traceStart);
+        }
+        return rowsDeleted;
+    }
+
+    private int deleteAt(Uri uri, String selection, String[] selectionArgs) {
         // Get writable database.
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
@@ -238,28 +1183,334 @@ public class PetProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deletePets(database, wrapSelection(selection), selectionArgs);
                 break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI.
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deletePets(database, selection, selectionArgs);
                 break;
+            case DRAFT_ID:
+                // Discard the draft of a single pet. Nothing observes drafts, so return directly.
+                selection = DraftEntry.COLUMN_DRAFT_PET_ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return database.delete(DraftEntry.TABLE_NAME, selection, selectionArgs);
+            case SHELTER_ID:
+                return deleteShelter(uri);
+            case SHELTER_PETS:
+                // Route the deletion to the shelter's partition, which keeps its own maintenance.
+                long shelterId = getShelterId(uri);
+                rowsDeleted = shelterId == ShelterEntry.DEFAULT_SHELTER_ID
+                        ? deleteAt(toPartitionUri(uri), selection, selectionArgs)
+                        : getShelter(shelterId).delete(toPartitionUri(uri), selection,
+                        selectionArgs);
+                if (rowsDeleted != 0) {
+                    notifyChange(uri);
+                }
+                return rowsDeleted;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
 
         }
 
+        onWritten(rowsDeleted, 0);
+
         // If 1+ rows were deleted, then notify all listeners that data at given URI has changed.
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows deleted.
         return rowsDeleted;
     }
 
+    // Delete the pets matching the given selection on the pets table, and the files of their
+    // photos once the rows are gone. Return the number of rows deleted.
+
+    private int deletePets(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        ArrayList<String> photos;
+        int rowsDeleted;
+        database.beginTransaction();
+        try {
+            photos = queryPhotos(database, selection, selectionArgs);
+            rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        for (String photo : photos) {
+            deletePhoto(photo);
+        }
+        return rowsDeleted;
+    }
+
+    // Delete the file of a photo that no pet uses any more. Within applyBatch() the file is only
+    // deleted once the batch commits, as a rollback would bring the pets using it back.
+    private void deletePhoto(String photo) {
+        LinkedHashSet<String> batchPhotos = mBatchPhotos.get();
+        if (batchPhotos != null) {
+            batchPhotos.add(photo);
+        } else {
+            PetPhotoStore.deletePhoto(getContext(), photo);
+        }
+    }
+
+    // Delete the files of those of the given photos that no pet uses. Within applyBatch() the
+    // check is left to the end of the batch, as later operations may set the photos again.
+    private void deleteUnusedPhotos(SQLiteDatabase database, Iterable<String> photos) {
+        LinkedHashSet<String> batchPhotos = mBatchPhotos.get();
+        for (String photo : photos) {
+            if (batchPhotos != null) {
+                batchPhotos.add(photo);
+            } else if (queryPhotos(database, PetEntry.COLUMN_PET_PHOTO + " = ?",
+                    new String[]{photo}).isEmpty()) {
+                PetPhotoStore.deletePhoto(getContext(), photo);
+            }
+        }
+    }
+
+    // Returns the photo file names of the pets matching the given selection on the pets table.
+
+    private static ArrayList<String> queryPhotos(SQLiteDatabase database, String selection,
+                                                 String[] selectionArgs) {
+        String photoSelection = PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL";
+        if (!TextUtils.isEmpty(selection)) {
+            photoSelection = "(" + selection + ") AND " + photoSelection;
+        }
+
+        ArrayList<String> photos = new ArrayList<>();
+        Cursor cursor = database.query(PetEntry.TABLE_NAME, new String[]{PetEntry.COLUMN_PET_PHOTO},
+                photoSelection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                photos.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return photos;
+    }
+
+    // Returns the shelter ID of a shelter URI.
+    private static long getShelterId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    // Returns the provider of the given shelter's partition, opening it on first use. Throws
+    // IllegalArgumentException if there is no such shelter. The default shelter has no
+    // partition; callers route its URIs to this provider's own methods.
+    private PetProvider getShelter(long shelterId) {
+        synchronized (mShelters) {
+            PetProvider shelter = mShelters.get(shelterId);
+            if (shelter == null) {
+                SQLiteDatabase database = mDbHelper.getReadableDatabase();
+                if (DatabaseUtils.queryNumEntries(database, ShelterEntry.TABLE_NAME,
+                        ShelterEntry._ID + "=?", new String[]{String.valueOf(shelterId)}) == 0) {
+                    throw new IllegalArgumentException("Unknown shelter " + shelterId);
+                }
+                shelter = createIsolated(getContext(),
+                        PetDbHelper.getShelterDatabaseName(mDatabaseName, shelterId));
+                mShelters.put(shelterId, shelter);
+            }
+            return shelter;
+        }
+    }
+
+    // Returns the URI a shelter's partition answers for the given shelter URI: the same path and
+    // query without the leading shelters/<id>.
+    private static Uri toPartitionUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        Uri.Builder builder = PetContract.BASE_CONTENT_URI.buildUpon();
+        for (int i = 2; i < segments.size(); i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.encodedQuery(uri.getEncodedQuery()).build();
+    }
+
+    // Returns the shelter URI for the given URI of the shelter's partition.
+    private static Uri toShelterUri(long shelterId, Uri partitionUri) {
+        Uri.Builder builder = ShelterEntry.CONTENT_URI.buildUpon()
+                .appendPath(String.valueOf(shelterId));
+        for (String segment : partitionUri.getPathSegments()) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+
+    // Returns the projection with the shelter ID column computed as a constant, as the partitions
+    // don't store it. If the projection doesn't ask for the column, it is only added if required.
+    private static String[] withShelterColumn(String[] projection, long shelterId,
+                                              boolean required) {
+        String column = shelterId + " AS " + PetEntry.COLUMN_PET_SHELTER_ID;
+        if (projection == null) {
+            return required ? new String[]{"*", column} : null;
+        }
+        String[] result = projection.clone();
+        boolean found = false;
+        for (int i = 0; i < result.length; i++) {
+            if (PetEntry.COLUMN_PET_SHELTER_ID.equals(result[i])) {
+                result[i] = column;
+                found = true;
+            }
+        }
+        if (found || !required) {
+            return result;
+        }
+        result = Arrays.copyOf(result, result.length + 1);
+        result[result.length - 1] = column;
+        return result;
+    }
+
+    // Query the pets of the default shelter and of every other shelter, in parallel as they are
+    // in separate database files, and return their rows one shelter after another. Each part
+    // watches the pets URI of its own shelter, and the merged cursor forwards observers to them.
+    private Cursor queryAllShelters(final String[] projection, final String selection,
+                                    final String[] selectionArgs, final String sortOrder) {
+        ArrayList<Callable<Cursor>> parts = new ArrayList<>();
+        parts.add(new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                Cursor cursor = queryAt(PetEntry.CONTENT_URI, withShelterColumn(projection,
+                        ShelterEntry.DEFAULT_SHELTER_ID, true), selection, selectionArgs,
+                        sortOrder);
+                // Run the query here, not when the merged cursor is first read.
+                cursor.getCount();
+                return cursor;
+            }
+        });
+        for (final long shelterId : queryShelterIds()) {
+            final PetProvider shelter = getShelter(shelterId);
+            parts.add(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    Cursor cursor = shelter.query(PetEntry.CONTENT_URI,
+                            withShelterColumn(projection, shelterId, true), selection,
+                            selectionArgs, sortOrder);
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            ShelterEntry.buildPetsUri(shelterId));
+                    cursor.getCount();
+                    return cursor;
+                }
+            });
+        }
+
+        ExecutorService executor;
+        synchronized (mShelters) {
+            if (mShelterExecutor == null) {
+                mShelterExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_SHELTERS);
+            }
+            executor = mShelterExecutor;
+        }
+
+        List<Future<Cursor>> futures;
+        try {
+            futures = executor.invokeAll(parts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying the shelters", e);
+        }
+
+        // Collect every part, so that none is leaked if another one failed.
+        Cursor[] cursors = new Cursor[futures.size()];
+        RuntimeException failure = null;
+        for (int i = 0; i < cursors.length; i++) {
+            try {
+                cursors[i] = futures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                failure = new IllegalStateException("Querying a shelter failed", e.getCause());
+            }
+        }
+        if (failure != null) {
+            for (Cursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            throw failure;
+        }
+        return new MergeCursor(cursors);
+    }
+
+    // Returns the IDs of all shelters but the default one, in order.
+    private long[] queryShelterIds() {
+        Cursor cursor = mDbHelper.getReadableDatabase().query(ShelterEntry.TABLE_NAME,
+                new String[]{ShelterEntry._ID}, null, null, null, null, ShelterEntry._ID);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Insert a shelter with the given content values. Its partition is created on first use.
+    private Uri insertShelter(Uri uri, ContentValues values) {
+        if (TextUtils.isEmpty(values.getAsString(ShelterEntry.COLUMN_SHELTER_NAME))) {
+            throw new IllegalArgumentException("Shelter requires a name");
+        }
+
+        long id = mDbHelper.getWritableDatabase().insert(ShelterEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        Uri newUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(newUri);
+        return newUri;
+    }
+
+    // Update the shelter given in the URI. Only its name can change.
+    private int updateShelter(Uri uri, ContentValues values) {
+        if (values.containsKey(ShelterEntry.COLUMN_SHELTER_NAME)
+                && TextUtils.isEmpty(values.getAsString(ShelterEntry.COLUMN_SHELTER_NAME))) {
+            throw new IllegalArgumentException("Shelter requires a name");
+        }
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        int rowsUpdated = mDbHelper.getWritableDatabase().update(ShelterEntry.TABLE_NAME, values,
+                ShelterEntry._ID + "=?", new String[]{String.valueOf(ContentUris.parseId(uri))});
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+        return rowsUpdated;
+    }
+
+    // Delete the shelter given in the URI with all of its pets, their photos and its database
+    // file. Return the number of shelters deleted, which is 0 for an unknown shelter. The default
+    // shelter has no row and can't be deleted.
+    private int deleteShelter(Uri uri) {
+        long shelterId = ContentUris.parseId(uri);
+        synchronized (mShelters) {
+            if (DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                    ShelterEntry.TABLE_NAME, ShelterEntry._ID + "=?",
+                    new String[]{String.valueOf(shelterId)}) == 0) {
+                return 0;
+            }
+
+            // Deleting the pets through the partition deletes their photos as well.
+            PetProvider shelter = getShelter(shelterId);
+            shelter.delete(PetEntry.CONTENT_URI, null, null);
+            shelter.shutdown();
+            mShelters.remove(shelterId);
+            getContext().deleteDatabase(
+                    PetDbHelper.getShelterDatabaseName(mDatabaseName, shelterId));
+
+            int rowsDeleted = mDbHelper.getWritableDatabase().delete(ShelterEntry.TABLE_NAME,
+                    ShelterEntry._ID + "=?", new String[]{String.valueOf(shelterId)});
+            // Observers of the shelter's pets are below the shelters URI, so they hear it too.
+            notifyChange(ShelterEntry.CONTENT_URI);
+            return rowsDeleted;
+        }
+    }
+
     // Returns the MIME type of data for the content URI.
 
     @Override
@@ -270,6 +1521,28 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PETS_AVAILABLE:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PETS_UPSERT:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PETS_SECTIONS:
+                return PetEntry.CONTENT_SECTIONS_TYPE;
+            case PET_HISTORY:
+                return HistoryEntry.CONTENT_LIST_TYPE;
+            case DRAFTS:
+                return DraftEntry.CONTENT_LIST_TYPE;
+            case DRAFT_ID:
+                return DraftEntry.CONTENT_ITEM_TYPE;
+            case SHELTERS:
+                return ShelterEntry.CONTENT_LIST_TYPE;
+            case SHELTER_ID:
+                return ShelterEntry.CONTENT_ITEM_TYPE;
+            case SHELTER_PETS:
+                // The paths below a shelter's pets URI have the types of the same paths below the
+                // pets URI.
+                return getType(toPartitionUri(uri));
+            case ALL_SHELTER_PETS:
+                return PetEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri + "with match " + match);
 
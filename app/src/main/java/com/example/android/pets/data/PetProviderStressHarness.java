@@ -0,0 +1,412 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress harness for PetProvider.
+ *
+ * Drives an isolated provider (see {@link PetProvider#createIsolated(Context, String)}) backed by
+ * a real PetDbHelper database from many threads at once, with a configurable mix of query,
+ * insert, update and delete operations. Reports throughput, latency percentiles per operation
+ * type and overall, and how much of the operations' time was spent waiting rather than running.
+ *
+ * Latencies are wall time from the start of an operation to its end, so they include the wait for
+ * the connection pool. Android serializes the writers of a process there instead of failing them
+ * with SQLiteDatabaseLockedException, so contention shows up as latency and wait time, not as
+ * retries.
+ *
+ * This is a debugging tool; run it off the UI thread.
+ */
+
+public class PetProviderStressHarness {
+
+    public static final String LOG_TAG = PetProviderStressHarness.class.getSimpleName();
+
+    // Name of the scratch database file. It is deleted before and after every run.
+    private static final String DATABASE_NAME = "shelter-stress.db";
+
+    // Operation codes, also used as indexes into the per-operation statistics.
+    private static final int OP_QUERY = 0;
+    private static final int OP_INSERT = 1;
+    private static final int OP_UPDATE = 2;
+    private static final int OP_DELETE = 3;
+    private static final String[] OP_NAMES = {"query", "insert", "update", "delete"};
+
+    // Initial and maximum wait before retrying an operation that found the database locked.
+    private static final long MIN_BACKOFF_MILLIS = 1;
+    private static final long MAX_BACKOFF_MILLIS = 64;
+
+    /**
+     * Workload settings for a run. The operation weights are relative, so 8/1/1/0 means eight
+     * queries for every insert and every update, and no deletes.
+     */
+    public static class Config {
+        private int mThreads = Runtime.getRuntime().availableProcessors();
+        private long mDurationMillis = 10000;
+        private int mSeedRows = 1000;
+        private int[] mWeights = {70, 10, 15, 5};
+        private int mMaxRetries = 10;
+        private long mRandomSeed = 42;
+
+        public Config setThreads(int threads) {
+            mThreads = threads;
+            return this;
+        }
+
+        public Config setDurationMillis(long durationMillis) {
+            mDurationMillis = durationMillis;
+            return this;
+        }
+
+        // Number of pets inserted before the timed part of the run starts.
+        public Config setSeedRows(int seedRows) {
+            mSeedRows = seedRows;
+            return this;
+        }
+
+        // Weights must not be negative, and at least one must be positive.
+        public Config setMix(int queryWeight, int insertWeight, int updateWeight, int deleteWeight) {
+            if (queryWeight < 0 || insertWeight < 0 || updateWeight < 0 || deleteWeight < 0
+                    || queryWeight + insertWeight + updateWeight + deleteWeight <= 0) {
+                throw new IllegalArgumentException("Operation weights must not be negative and "
+                        + "must not all be 0");
+            }
+            mWeights = new int[]{queryWeight, insertWeight, updateWeight, deleteWeight};
+            return this;
+        }
+
+        // How many times a locked operation is retried before it counts as failed.
+        public Config setMaxRetries(int maxRetries) {
+            mMaxRetries = maxRetries;
+            return this;
+        }
+
+        public Config setRandomSeed(long randomSeed) {
+            mRandomSeed = randomSeed;
+            return this;
+        }
+    }
+
+    /**
+     * Result of a run. Latencies are in microseconds, as p50, p95, p99 and max.
+     */
+    public static class Report {
+        public final int threads;
+        public final long elapsedMillis;
+        public final long[] counts = new long[OP_NAMES.length];
+        public final long[] failures = new long[OP_NAMES.length];
+        public final long[][] percentiles = new long[OP_NAMES.length][];
+        // Latencies of all operation types together.
+        public long[] overallPercentiles;
+        public long retries;
+        // Time the operations spent off the CPU, summed over all threads. Mostly the wait for the
+        // connection pool, plus disk I/O.
+        public long waitMillis;
+
+        Report(int threads, long elapsedMillis) {
+            this.threads = threads;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        // Completed operations per second over all operation types.
+        public double getThroughput() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return elapsedMillis == 0 ? 0 : total * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            long[] all = overallPercentiles;
+            sb.append(String.format(Locale.US, "%d threads, %d ms, %.1f ops/s, %d retries, "
+                    + "%d ms waiting%n", threads, elapsedMillis, getThroughput(), retries,
+                    waitMillis));
+            sb.append(String.format(Locale.US, "all    p50=%dus p95=%dus p99=%dus max=%dus%n",
+                    all[0], all[1], all[2], all[3]));
+            for (int op = 0; op < OP_NAMES.length; op++) {
+                long[] p = percentiles[op];
+                sb.append(String.format(Locale.US, "%-6s n=%d failed=%d p50=%dus p95=%dus "
+                        + "p99=%dus max=%dus%n", OP_NAMES[op], counts[op], failures[op],
+                        p[0], p[1], p[2], p[3]));
+            }
+            return sb.toString();
+        }
+    }
+
+    // Latencies recorded by one worker thread for one operation type.
+    static class LatencyLog {
+        long[] mValues = new long[1024];
+        int mSize;
+        long mFailures;
+
+        void add(long micros) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = micros;
+        }
+    }
+
+    private final Context mContext;
+
+    private final Config mConfig;
+
+    // Highest pet ID handed out so far; updates and deletes pick IDs at random below it.
+    private final AtomicLong mMaxId = new AtomicLong();
+
+    private final AtomicLong mRetries = new AtomicLong();
+
+    // Wall time minus thread CPU time of all operations, in nanoseconds.
+    private final AtomicLong mWaitNanos = new AtomicLong();
+
+    private PetProvider mProvider;
+
+    public PetProviderStressHarness(Context context, Config config) {
+        int totalWeight = 0;
+        for (int weight : config.mWeights) {
+            totalWeight += weight;
+        }
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("At least one operation weight must be positive");
+        }
+        mContext = context.getApplicationContext();
+        mConfig = config;
+    }
+
+    // Run the workload and return the report. Blocks until the run has finished.
+    public Report run() throws InterruptedException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        // Background compaction and maintenance would compete for the connection and skew the
+        // latencies, so the provider runs without them.
+        mProvider = PetProvider.createIsolated(mContext, DATABASE_NAME, false);
+        try {
+            Random random = new Random(mConfig.mRandomSeed);
+            for (int i = 0; i < mConfig.mSeedRows; i++) {
+                insert(random);
+            }
+            return runWorkers();
+        } finally {
+            mProvider.shutdown();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    private Report runWorkers() throws InterruptedException {
+        final int threads = mConfig.mThreads;
+        final LatencyLog[][] logs = new LatencyLog[threads][OP_NAMES.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        final long deadline = SystemClock.elapsedRealtime() + mConfig.mDurationMillis;
+        for (int t = 0; t < threads; t++) {
+            final LatencyLog[] threadLogs = logs[t];
+            for (int op = 0; op < OP_NAMES.length; op++) {
+                threadLogs[op] = new LatencyLog();
+            }
+            final Random random = new Random(mConfig.mRandomSeed + t + 1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (SystemClock.elapsedRealtime() < deadline) {
+                        int op = pickOperation(random);
+                        long begin = System.nanoTime();
+                        long cpuBegin = Debug.threadCpuTimeNanos();
+                        boolean succeeded = runWithRetries(op, random);
+                        long wall = System.nanoTime() - begin;
+                        // Not every kernel reports thread CPU time; it's -1 then.
+                        if (cpuBegin != -1) {
+                            long cpu = Debug.threadCpuTimeNanos() - cpuBegin;
+                            mWaitNanos.addAndGet(Math.max(wall - cpu, 0));
+                        }
+                        if (succeeded) {
+                            threadLogs[op].add(wall / 1000);
+                        } else {
+                            threadLogs[op].mFailures++;
+                        }
+                    }
+                }
+            });
+        }
+
+        long begin = SystemClock.elapsedRealtime();
+        start.countDown();
+        executor.shutdown();
+        if (!executor.awaitTermination(mConfig.mDurationMillis + TimeUnit.MINUTES.toMillis(1),
+                TimeUnit.MILLISECONDS)) {
+            // The workers are still writing to their logs, so there is no report to read.
+            executor.shutdownNow();
+            throw new IllegalStateException("Stress workers did not finish within a minute of "
+                    + "the end of the run");
+        }
+
+        Report report = new Report(threads, SystemClock.elapsedRealtime() - begin);
+        LatencyLog all = new LatencyLog();
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            int total = 0;
+            for (LatencyLog[] threadLogs : logs) {
+                total += threadLogs[op].mSize;
+                report.failures[op] += threadLogs[op].mFailures;
+            }
+            long[] merged = new long[total];
+            int offset = 0;
+            for (LatencyLog[] threadLogs : logs) {
+                System.arraycopy(threadLogs[op].mValues, 0, merged, offset, threadLogs[op].mSize);
+                offset += threadLogs[op].mSize;
+            }
+            for (long micros : merged) {
+                all.add(micros);
+            }
+            report.counts[op] = total;
+            report.percentiles[op] = summarize(merged);
+        }
+        report.overallPercentiles = summarize(Arrays.copyOf(all.mValues, all.mSize));
+        report.retries = mRetries.get();
+        report.waitMillis = TimeUnit.NANOSECONDS.toMillis(mWaitNanos.get());
+
+        Log.i(LOG_TAG, report.toString());
+        return report;
+    }
+
+    // Pick an operation code at random according to the configured weights.
+    private int pickOperation(Random random) {
+        int total = 0;
+        for (int weight : mConfig.mWeights) {
+            total += weight;
+        }
+        int value = random.nextInt(total);
+        for (int op = 0; op < mConfig.mWeights.length; op++) {
+            value -= mConfig.mWeights[op];
+            if (value < 0) {
+                return op;
+            }
+        }
+        return OP_QUERY;
+    }
+
+    // Run one operation, retrying with exponential backoff while the database is locked, which
+    // only happens when another process holds it. Return whether the operation eventually
+    // succeeded.
+    private boolean runWithRetries(int op, Random random) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                runOperation(op, random);
+                return true;
+            } catch (SQLiteDatabaseLockedException e) {
+                if (attempt >= mConfig.mMaxRetries) {
+                    Log.w(LOG_TAG, "Giving up on " + OP_NAMES[op] + " after " + attempt
+                            + " retries", e);
+                    return false;
+                }
+                mRetries.incrementAndGet();
+                SystemClock.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void runOperation(int op, Random random) {
+        switch (op) {
+            case OP_QUERY:
+                query(random);
+                break;
+            case OP_INSERT:
+                insert(random);
+                break;
+            case OP_UPDATE:
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(80));
+                mProvider.update(randomPetUri(random), values, null, null);
+                break;
+            case OP_DELETE:
+                mProvider.delete(randomPetUri(random), null, null);
+                break;
+        }
+    }
+
+    // Either read a single pet, or read all pets of one gender like a filtered catalog would.
+    // Every row is visited, so the cost of filling the cursor window is part of the latency.
+    private void query(Random random) {
+        Cursor cursor;
+        if (random.nextBoolean()) {
+            cursor = mProvider.query(randomPetUri(random), null, null, null, null);
+        } else {
+            cursor = mProvider.query(PetEntry.CONTENT_URI,
+                    new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED},
+                    PetEntry.COLUMN_PET_GENDER + "=?",
+                    new String[]{String.valueOf(random.nextInt(3))},
+                    null);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insert(Random random) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Stress " + random.nextInt(100000));
+        values.put(PetEntry.COLUMN_PET_BREED, "Breed " + random.nextInt(20));
+        values.put(PetEntry.COLUMN_PET_GENDER, random.nextInt(3));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(80));
+        Uri uri = mProvider.insert(PetEntry.CONTENT_URI, values);
+        if (uri != null) {
+            long id = ContentUris.parseId(uri);
+            long max;
+            do {
+                max = mMaxId.get();
+            } while (id > max && !mMaxId.compareAndSet(max, id));
+        }
+    }
+
+    private Uri randomPetUri(Random random) {
+        long max = Math.max(mMaxId.get(), 1);
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + (long) (random.nextDouble() * max));
+    }
+
+    // Sort the given latencies and return their p50, p95, p99 and max.
+    private static long[] summarize(long[] latencies) {
+        Arrays.sort(latencies);
+        return new long[]{percentile(latencies, 50), percentile(latencies, 95),
+                percentile(latencies, 99),
+                latencies.length == 0 ? 0 : latencies[latencies.length - 1]};
+    }
+
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+}
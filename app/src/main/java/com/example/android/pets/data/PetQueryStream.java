@@ -0,0 +1,417 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Observes the pets matching a selection as a stream of row-level changes, without an activity.
+ *
+ * A subscriber first receives every matching pet, then only the pets that were inserted, updated
+ * or deleted since the change before. Changes are pulled: nothing is queried or delivered beyond
+ * what the subscriber has asked for with {@link Subscription#request(long)}. Changes that happen
+ * meanwhile are conflated, so a slow subscriber gets one change covering all of them when it asks
+ * for more, not a backlog. A change notified for a single pet only re-reads that pet; any other
+ * change requeries the selection and sends the difference.
+ *
+ * All callbacks run on one background thread shared by all streams, in order.
+ */
+
+public class PetQueryStream {
+
+    public static final String LOG_TAG = PetQueryStream.class.getSimpleName();
+
+    // Above this many changed single pets, one requery is cheaper than looking each one up.
+    private static final int MAX_DIRTY_ROWS = 2000;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO,
+            PetEntry.COLUMN_PET_STATUS,
+            PetEntry.COLUMN_PET_INTAKE_DATE};
+
+    private static Handler sHandler;
+
+    /**
+     * Receives the changes of a stream, on the stream thread.
+     */
+    public interface Subscriber {
+        // Called once, before anything else. Nothing is delivered until request() is called.
+        void onSubscribe(Subscription subscription);
+
+        // Called at most as many times as requested.
+        void onNext(Change change);
+
+        // Called if the pets can't be read. The subscription is cancelled.
+        void onError(Exception e);
+    }
+
+    /**
+     * Link between a stream and its subscriber. Methods can be called from any thread.
+     */
+    public interface Subscription {
+        // Allow n more changes to be delivered.
+        void request(long n);
+
+        // Stop delivering changes and release the resources of the subscription.
+        void cancel();
+    }
+
+    /**
+     * One pet as delivered by a stream.
+     */
+    public static final class Pet {
+        public final long id;
+        public final String name;
+        // Null for an unknown breed.
+        public final String breed;
+        public final int gender;
+        public final int weight;
+        public final String photo;
+        public final int status;
+        public final long intakeDate;
+
+        Pet(Cursor cursor) {
+            id = cursor.getLong(0);
+            name = cursor.getString(1);
+            breed = cursor.getString(2);
+            gender = cursor.getInt(3);
+            weight = cursor.getInt(4);
+            photo = cursor.getString(5);
+            status = cursor.getInt(6);
+            intakeDate = cursor.getLong(7);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Pet)) {
+                return false;
+            }
+            Pet other = (Pet) o;
+            return id == other.id && gender == other.gender && weight == other.weight
+                    && status == other.status && intakeDate == other.intakeDate
+                    && TextUtils.equals(name, other.name) && TextUtils.equals(breed, other.breed)
+                    && TextUtils.equals(photo, other.photo);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id ^ (id >>> 32));
+        }
+    }
+
+    /**
+     * The difference between the pets matching a stream's selection at two points in time.
+     */
+    public static final class Change {
+        // Whether this is the first change of the stream, whose inserted pets are all matching
+        // pets.
+        public final boolean reset;
+        public final List<Pet> inserted;
+        public final List<Pet> updated;
+        // IDs of the pets that were deleted or no longer match the selection.
+        public final long[] deleted;
+
+        Change(boolean reset, List<Pet> inserted, List<Pet> updated, long[] deleted) {
+            this.reset = reset;
+            this.inserted = Collections.unmodifiableList(inserted);
+            this.updated = Collections.unmodifiableList(updated);
+            this.deleted = deleted;
+        }
+
+        // Returns whether nothing changed.
+        public boolean isEmpty() {
+            return inserted.isEmpty() && updated.isEmpty() && deleted.length == 0;
+        }
+
+        // Apply this change to the given pets by ID, e.g. for a subscriber that wants the full
+        // result rather than the differences.
+        public void applyTo(LongSparseArray<Pet> pets) {
+            if (reset) {
+                pets.clear();
+            }
+            for (Pet pet : inserted) {
+                pets.put(pet.id, pet);
+            }
+            for (Pet pet : updated) {
+                pets.put(pet.id, pet);
+            }
+            for (long id : deleted) {
+                pets.remove(id);
+            }
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+
+    private final String mSelection;
+
+    private final String[] mSelectionArgs;
+
+    /**
+     * Construct a stream of the pets matching the given selection.
+     *
+     * @param context       of the app
+     * @param selection     on the pets content URI, or null for all pets
+     * @param selectionArgs for the selection
+     */
+
+    public PetQueryStream(Context context, String selection, String[] selectionArgs) {
+        mContentResolver = context.getApplicationContext().getContentResolver();
+        mSelection = selection;
+        mSelectionArgs = selectionArgs == null ? new String[0] : selectionArgs;
+    }
+
+    // Start delivering the changes of this stream to the given subscriber. Each subscriber gets
+    // its own subscription, starting with all matching pets.
+    public Subscription subscribe(final Subscriber subscriber) {
+        final StreamSubscription subscription = new StreamSubscription(subscriber);
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                mContentResolver.registerContentObserver(PetEntry.CONTENT_URI, true,
+                        subscription);
+                subscriber.onSubscribe(subscription);
+            }
+        });
+        return subscription;
+    }
+
+    // Returns the handler of the thread shared by all streams, starting the thread if needed.
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    // The state of one subscriber. Everything but the Subscription methods runs on the stream
+    // thread, so only the cancelled flag needs to be shared.
+    private class StreamSubscription extends ContentObserver implements Subscription {
+        private final Subscriber mSubscriber;
+
+        private volatile boolean mCancelled;
+
+        // Number of changes the subscriber still accepts.
+        private long mDemand;
+
+        // The pets as of the last delivered change.
+        private LongSparseArray<Pet> mPets = new LongSparseArray<>();
+
+        // Whether nothing has been delivered yet.
+        private boolean mReset = true;
+
+        // What changed since the last delivered change: either anything, or just these pets.
+        private boolean mRequery = true;
+        private final HashSet<Long> mDirtyIds = new HashSet<>();
+
+        StreamSubscription(Subscriber subscriber) {
+            super(getHandler());
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("Requested " + n + " changes");
+            }
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    // Saturate rather than overflow, so Long.MAX_VALUE means unbounded.
+                    mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+                    deliver();
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    mContentResolver.unregisterContentObserver(StreamSubscription.this);
+                    mPets = new LongSparseArray<>();
+                    mDirtyIds.clear();
+                }
+            });
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // A single pet URI ends with its ID; anything else may touch any row.
+            if (uri != null && uri.getPathSegments().size() == 2
+                    && PetContract.PATH_PETS.equals(uri.getPathSegments().get(0))
+                    && TextUtils.isDigitsOnly(uri.getLastPathSegment())
+                    && mDirtyIds.size() < MAX_DIRTY_ROWS) {
+                mDirtyIds.add(Long.parseLong(uri.getLastPathSegment()));
+            } else {
+                mRequery = true;
+            }
+            deliver();
+        }
+
+        // Deliver the pending change, if there is one and the subscriber wants it.
+        private void deliver() {
+            if (mCancelled || mDemand == 0 || (!mRequery && mDirtyIds.isEmpty())) {
+                return;
+            }
+
+            Change change;
+            try {
+                change = mRequery ? requery() : refreshDirtyRows();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failed to read pets", e);
+                cancel();
+                mSubscriber.onError(e);
+                return;
+            }
+            mRequery = false;
+            mDirtyIds.clear();
+
+            // A change may turn out not to affect the selection at all.
+            if (change.isEmpty() && !change.reset) {
+                return;
+            }
+            mReset = false;
+            if (mDemand != Long.MAX_VALUE) {
+                mDemand--;
+            }
+            mSubscriber.onNext(change);
+        }
+
+        // Query all matching pets and return the difference to the last delivered pets.
+        private Change requery() {
+            LongSparseArray<Pet> pets = new LongSparseArray<>();
+            Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI, PROJECTION, mSelection,
+                    mSelectionArgs, null);
+            if (cursor == null) {
+                throw new IllegalStateException("No pets provider");
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    pets.put(cursor.getLong(0), new Pet(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            List<Pet> inserted = new ArrayList<>();
+            List<Pet> updated = new ArrayList<>();
+            for (int i = 0; i < pets.size(); i++) {
+                Pet pet = pets.valueAt(i);
+                Pet old = mPets.get(pet.id);
+                if (old == null) {
+                    inserted.add(pet);
+                } else if (!old.equals(pet)) {
+                    updated.add(pet);
+                }
+            }
+            long[] deleted = new long[mPets.size()];
+            int deletedCount = 0;
+            for (int i = 0; i < mPets.size(); i++) {
+                if (pets.get(mPets.keyAt(i)) == null) {
+                    deleted[deletedCount++] = mPets.keyAt(i);
+                }
+            }
+
+            mPets = pets;
+            return new Change(mReset, inserted, updated, trim(deleted, deletedCount));
+        }
+
+        // Re-read only the pets changed since the last delivered change, and return the
+        // difference to how they were delivered.
+        private Change refreshDirtyRows() {
+            long[] ids = new long[mDirtyIds.size()];
+            int index = 0;
+            for (Long id : mDirtyIds) {
+                ids[index++] = id;
+            }
+
+            List<Pet> inserted = new ArrayList<>();
+            List<Pet> updated = new ArrayList<>();
+            HashSet<Long> found = new HashSet<>();
+            for (int start = 0; start < ids.length; start += PetContract.MAX_IDS_PER_SELECTION) {
+                int end = Math.min(start + PetContract.MAX_IDS_PER_SELECTION, ids.length);
+                String selection = PetContract.buildIdSelection(end - start);
+                String[] idArgs = PetContract.buildIdSelectionArgs(ids, start, end);
+                String[] selectionArgs = idArgs;
+                if (mSelection != null) {
+                    selection = selection + " AND (" + mSelection + ")";
+                    selectionArgs = new String[idArgs.length + mSelectionArgs.length];
+                    System.arraycopy(idArgs, 0, selectionArgs, 0, idArgs.length);
+                    System.arraycopy(mSelectionArgs, 0, selectionArgs, idArgs.length,
+                            mSelectionArgs.length);
+                }
+
+                Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI, PROJECTION,
+                        selection, selectionArgs, null);
+                if (cursor == null) {
+                    throw new IllegalStateException("No pets provider");
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        Pet pet = new Pet(cursor);
+                        found.add(pet.id);
+                        Pet old = mPets.get(pet.id);
+                        if (old == null) {
+                            inserted.add(pet);
+                        } else if (!old.equals(pet)) {
+                            updated.add(pet);
+                        }
+                        mPets.put(pet.id, pet);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            // Dirty pets that weren't found were deleted, or no longer match the selection.
+            long[] deleted = new long[ids.length];
+            int deletedCount = 0;
+            for (long id : ids) {
+                if (!found.contains(id) && mPets.get(id) != null) {
+                    mPets.remove(id);
+                    deleted[deletedCount++] = id;
+                }
+            }
+            return new Change(false, inserted, updated, trim(deleted, deletedCount));
+        }
+    }
+
+    private static long[] trim(long[] array, int length) {
+        if (array.length == length) {
+            return array;
+        }
+        long[] trimmed = new long[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
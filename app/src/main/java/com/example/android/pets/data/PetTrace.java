@@ -0,0 +1,378 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Binary format of the PetProvider workload traces written by {@link PetTraceRecorder} and read
+ * by {@link PetTraceReplayer}.
+ *
+ * A trace starts with a header (magic number, version, number of pets at the start of the
+ * recording) followed by one record per provider operation: its type, start time and duration,
+ * and its URI, projection, selection, selection arguments and sort order as applicable. Content
+ * values are only recorded by their shape, the names and types of their columns, so a trace
+ * carries no pet records. Selection arguments are kept as they are, as they decide which rows an
+ * operation touches. Strings repeat a lot (every catalog query has the same URI and projection),
+ * so each distinct string is written once and referred to by number afterwards, and numbers are
+ * written as varints.
+ */
+
+final class PetTrace {
+
+    private static final int MAGIC = 0x50455454;
+
+    private static final int VERSION = 1;
+
+    // Operation types, also used as indexes into OP_NAMES.
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_UPDATE = 3;
+    static final int OP_DELETE = 4;
+    static final int OP_CALL = 5;
+    static final int OP_BATCH = 6;
+    static final String[] OP_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete", "call", "batch"};
+
+    // String references: 0 is null, 1 introduces a new string, and n >= 2 refers to string n - 2.
+    private static final int REF_NULL = 0;
+    private static final int REF_NEW = 1;
+    private static final int REF_FIRST = 2;
+
+    // Column types in a values shape.
+    static final char TYPE_NULL = 'n';
+    static final char TYPE_INTEGER = 'i';
+    static final char TYPE_REAL = 'r';
+    static final char TYPE_STRING = 's';
+    static final char TYPE_BLOB = 'b';
+
+    private PetTrace() {
+    }
+
+    /**
+     * One recorded provider operation. Which fields are set depends on the type.
+     */
+    static class Op {
+        final int type;
+
+        // Start time since the beginning of the recording, and duration, in microseconds.
+        long startMicros;
+        long durationMicros;
+
+        String uri;
+        String[] projection;
+        String selection;
+        String[] selectionArgs;
+        String sortOrder;
+
+        // Shapes of the content values: one for an insert or update, one per row for a bulk insert.
+        String[] shapes;
+
+        // Rows returned by a query, or IDs passed to a call.
+        int count;
+
+        // Name and numeric argument of a call.
+        String method;
+        long argument;
+
+        // Operations applied by a batch, in order.
+        ArrayList<Op> children;
+
+        Op(int type) {
+            this.type = type;
+        }
+    }
+
+    // Returns the shape of the given content values: their column names and value types, sorted
+    // by column so that equal shapes are equal strings, e.g. "gender:i,name:s".
+    static String getShape(ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        StringBuilder shape = new StringBuilder();
+        for (String column : columns) {
+            if (shape.length() != 0) {
+                shape.append(',');
+            }
+            shape.append(column).append(':').append(getType(values.get(column)));
+        }
+        return shape.toString();
+    }
+
+    // Returns the shapes of the given content values.
+    static String[] getShapes(ContentValues[] values) {
+        String[] shapes = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            shapes[i] = getShape(values[i]);
+        }
+        return shapes;
+    }
+
+    private static char getType(Object value) {
+        if (value == null) {
+            return TYPE_NULL;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Float || value instanceof Double) {
+            return TYPE_REAL;
+        } else if (value instanceof byte[]) {
+            return TYPE_BLOB;
+        }
+        // Integers of any size, and booleans, which are stored as 0 or 1.
+        return TYPE_INTEGER;
+    }
+
+    /**
+     * Writes operations to a trace. Not thread safe.
+     */
+    static class Writer {
+        private final DataOutputStream mOut;
+
+        private final HashMap<String, Integer> mStrings = new HashMap<>();
+
+        private long mLastStartMicros;
+
+        Writer(OutputStream out, long petCount) throws IOException {
+            mOut = new DataOutputStream(out);
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+            writeVarLong(petCount);
+        }
+
+        // Returns the number of bytes written so far.
+        int size() {
+            return mOut.size();
+        }
+
+        void write(Op op) throws IOException {
+            mOut.writeByte(op.type);
+            // Operations are written in the order they finish, so a start may precede the last.
+            writeSignedVarLong(op.startMicros - mLastStartMicros);
+            mLastStartMicros = op.startMicros;
+            writeVarLong(op.durationMicros);
+            writeString(op.uri);
+            switch (op.type) {
+                case OP_QUERY:
+                    writeStrings(op.projection);
+                    writeString(op.selection);
+                    writeStrings(op.selectionArgs);
+                    writeString(op.sortOrder);
+                    writeVarLong(op.count);
+                    break;
+                case OP_INSERT:
+                    writeString(op.shapes[0]);
+                    break;
+                case OP_BULK_INSERT:
+                    writeStrings(op.shapes);
+                    break;
+                case OP_UPDATE:
+                    writeString(op.shapes[0]);
+                    writeString(op.selection);
+                    writeStrings(op.selectionArgs);
+                    break;
+                case OP_DELETE:
+                    writeString(op.selection);
+                    writeStrings(op.selectionArgs);
+                    break;
+                case OP_CALL:
+                    writeString(op.method);
+                    writeVarLong(op.count);
+                    writeSignedVarLong(op.argument);
+                    break;
+                case OP_BATCH:
+                    writeVarLong(op.children.size());
+                    for (Op child : op.children) {
+                        write(child);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation type " + op.type);
+            }
+        }
+
+        void close() throws IOException {
+            mOut.close();
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(REF_NULL);
+                return;
+            }
+            Integer index = mStrings.get(value);
+            if (index != null) {
+                writeVarLong(REF_FIRST + index);
+                return;
+            }
+            mStrings.put(value, mStrings.size());
+            writeVarLong(REF_NEW);
+            mOut.writeUTF(value);
+        }
+
+        // Writes the length of the array plus 1, or 0 for null, followed by the strings.
+        private void writeStrings(String[] values) throws IOException {
+            if (values == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(values.length + 1);
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        private void writeSignedVarLong(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                mOut.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+    }
+
+    /**
+     * Reads the operations of a trace. Not thread safe.
+     */
+    static class Reader {
+        private final DataInputStream mIn;
+
+        private final ArrayList<String> mStrings = new ArrayList<>();
+
+        private final long mPetCount;
+
+        private long mLastStartMicros;
+
+        Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            if (mIn.readInt() != MAGIC) {
+                throw new IOException("Not a pet trace");
+            }
+            int version = mIn.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            mPetCount = readVarLong();
+        }
+
+        // Returns the number of pets in the database when the recording started.
+        long getPetCount() {
+            return mPetCount;
+        }
+
+        // Returns the next operation, or null at the end of the trace.
+        Op read() throws IOException {
+            int type = mIn.read();
+            if (type == -1) {
+                return null;
+            }
+            return read(type);
+        }
+
+        void close() throws IOException {
+            mIn.close();
+        }
+
+        private Op read(int type) throws IOException {
+            Op op = new Op(type);
+            op.startMicros = mLastStartMicros + readSignedVarLong();
+            mLastStartMicros = op.startMicros;
+            op.durationMicros = readVarLong();
+            op.uri = readString();
+            switch (type) {
+                case OP_QUERY:
+                    op.projection = readStrings();
+                    op.selection = readString();
+                    op.selectionArgs = readStrings();
+                    op.sortOrder = readString();
+                    op.count = (int) readVarLong();
+                    break;
+                case OP_INSERT:
+                    op.shapes = new String[]{readString()};
+                    break;
+                case OP_BULK_INSERT:
+                    op.shapes = readStrings();
+                    break;
+                case OP_UPDATE:
+                    op.shapes = new String[]{readString()};
+                    op.selection = readString();
+                    op.selectionArgs = readStrings();
+                    break;
+                case OP_DELETE:
+                    op.selection = readString();
+                    op.selectionArgs = readStrings();
+                    break;
+                case OP_CALL:
+                    op.method = readString();
+                    op.count = (int) readVarLong();
+                    op.argument = readSignedVarLong();
+                    break;
+                case OP_BATCH:
+                    int size = (int) readVarLong();
+                    op.children = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        op.children.add(read(mIn.readUnsignedByte()));
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown operation type " + type);
+            }
+            return op;
+        }
+
+        private String readString() throws IOException {
+            int ref = (int) readVarLong();
+            if (ref == REF_NULL) {
+                return null;
+            }
+            if (ref == REF_NEW) {
+                String value = mIn.readUTF();
+                mStrings.add(value);
+                return value;
+            }
+            if (ref - REF_FIRST >= mStrings.size()) {
+                throw new IOException("Unknown string reference " + ref);
+            }
+            return mStrings.get(ref - REF_FIRST);
+        }
+
+        private String[] readStrings() throws IOException {
+            int length = (int) readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            String[] values = new String[length - 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString();
+            }
+            return values;
+        }
+
+        private long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mIn.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Records the operations PetProvider performs into a trace file (see {@link PetTrace}), so that a
+ * real shelter workload can be replayed later by {@link PetTraceReplayer}.
+ *
+ * Recording is meant to run in the field, so the provider threads only capture what they did and
+ * hand it to a background thread, which encodes it and writes it out. Only the app's own provider
+ * is recorded, not isolated ones such as the replayer's. The trace stops growing at
+ * MAX_TRACE_BYTES.
+ */
+
+public class PetTraceRecorder {
+
+    public static final String LOG_TAG = PetTraceRecorder.class.getSimpleName();
+
+    // Name of the trace file in the app's files directory. A new recording replaces it.
+    private static final String TRACE_FILE_NAME = "pets.trace";
+
+    // Size at which the trace stops growing, so a forgotten recording can't fill the device.
+    private static final int MAX_TRACE_BYTES = 16 * 1024 * 1024;
+
+    // The recorder that was started, and the one operations are recorded to once its trace is
+    // open. Guarded by PetTraceRecorder.class.
+    private static PetTraceRecorder sRecorder;
+    private static volatile PetTraceRecorder sActive;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    // Operations of the batch the current thread is applying, or null outside of a batch.
+    private final ThreadLocal<ArrayList<PetTrace.Op>> mBatch = new ThreadLocal<>();
+
+    // Time the recording started, set before the recorder becomes active.
+    private long mStartNanos;
+
+    // Only touched on the background thread. Null once closed or after a write failed.
+    private PetTrace.Writer mWriter;
+
+    // Returns the file the trace is recorded to.
+    public static File getTraceFile(Context context) {
+        return new File(context.getFilesDir(), TRACE_FILE_NAME);
+    }
+
+    // Start recording the operations of the app's provider, replacing the previous trace. Does
+    // nothing if a recording is already running.
+    public static synchronized void start(Context context) {
+        if (sRecorder == null) {
+            sRecorder = new PetTraceRecorder(context.getApplicationContext());
+        }
+    }
+
+    // Stop recording and close the trace.
+    public static synchronized void stop() {
+        if (sRecorder != null) {
+            sActive = null;
+            sRecorder.close();
+            sRecorder = null;
+        }
+    }
+
+    // Returns whether a recording is running.
+    public static synchronized boolean isRecording() {
+        return sRecorder != null;
+    }
+
+    // Returns the recorder to record operations to, or null if none is recording.
+    static PetTraceRecorder getActive() {
+        return sActive;
+    }
+
+    private PetTraceRecorder(final Context context) {
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        // Count the pets before recording starts, so the count query isn't part of the trace.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long petCount = countPets(context);
+                try {
+                    mWriter = new PetTrace.Writer(new BufferedOutputStream(
+                            new FileOutputStream(getTraceFile(context))), petCount);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Could not open the trace file", e);
+                    abort();
+                    return;
+                }
+                synchronized (PetTraceRecorder.class) {
+                    if (sRecorder == PetTraceRecorder.this) {
+                        mStartNanos = System.nanoTime();
+                        sActive = PetTraceRecorder.this;
+                    }
+                }
+            }
+        });
+    }
+
+    // Record a query that returned the given number of rows.
+    void recordQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                     String sortOrder, int count, long startNanos) {
+        PetTrace.Op op = newOp(PetTrace.OP_QUERY, uri, startNanos);
+        op.projection = projection;
+        op.selection = selection;
+        op.selectionArgs = selectionArgs;
+        op.sortOrder = sortOrder;
+        op.count = count;
+        add(op);
+    }
+
+    // Record an insert of content values with the given shape (see PetTrace.getShape()).
+    void recordInsert(Uri uri, String shape, long startNanos) {
+        PetTrace.Op op = newOp(PetTrace.OP_INSERT, uri, startNanos);
+        op.shapes = new String[]{shape};
+        add(op);
+    }
+
+    // Record a bulk insert of content values with the given shapes.
+    void recordBulkInsert(Uri uri, String[] shapes, long startNanos) {
+        PetTrace.Op op = newOp(PetTrace.OP_BULK_INSERT, uri, startNanos);
+        op.shapes = shapes;
+        add(op);
+    }
+
+    // Record an update with content values of the given shape.
+    void recordUpdate(Uri uri, String shape, String selection, String[] selectionArgs,
+                      long startNanos) {
+        PetTrace.Op op = newOp(PetTrace.OP_UPDATE, uri, startNanos);
+        op.shapes = new String[]{shape};
+        op.selection = selection;
+        op.selectionArgs = selectionArgs;
+        add(op);
+    }
+
+    void recordDelete(Uri uri, String selection, String[] selectionArgs, long startNanos) {
+        PetTrace.Op op = newOp(PetTrace.OP_DELETE, uri, startNanos);
+        op.selection = selection;
+        op.selectionArgs = selectionArgs;
+        add(op);
+    }
+
+    // Record a provider method call on the given number of pets, with a numeric argument.
+    void recordCall(String method, int count, long argument, long startNanos) {
+        PetTrace.Op op = newOp(PetTrace.OP_CALL, null, startNanos);
+        op.method = method;
+        op.count = count;
+        op.argument = argument;
+        add(op);
+    }
+
+    // Collect the operations of the current thread until endBatch(), so the batch is recorded as
+    // one operation. Returns false, and does nothing, if the thread is already in a batch.
+    boolean beginBatch() {
+        if (mBatch.get() != null) {
+            return false;
+        }
+        mBatch.set(new ArrayList<PetTrace.Op>());
+        return true;
+    }
+
+    // End the batch of the current thread, and record it if it was applied.
+    void endBatch(boolean successful, long startNanos) {
+        ArrayList<PetTrace.Op> children = mBatch.get();
+        mBatch.remove();
+        if (successful && children != null) {
+            PetTrace.Op op = newOp(PetTrace.OP_BATCH, null, startNanos);
+            op.children = children;
+            add(op);
+        }
+    }
+
+    private PetTrace.Op newOp(int type, Uri uri, long startNanos) {
+        PetTrace.Op op = new PetTrace.Op(type);
+        op.startMicros = (startNanos - mStartNanos) / 1000;
+        op.durationMicros = (System.nanoTime() - startNanos) / 1000;
+        op.uri = uri == null ? null : uri.toString();
+        return op;
+    }
+
+    // Add the operation to the current batch, or write it out in the background.
+    private void add(final PetTrace.Op op) {
+        ArrayList<PetTrace.Op> batch = mBatch.get();
+        if (batch != null) {
+            batch.add(op);
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(op);
+            }
+        });
+    }
+
+    // Write the operation to the trace. Runs on the background thread.
+    private void write(PetTrace.Op op) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(op);
+            if (mWriter.size() >= MAX_TRACE_BYTES) {
+                Log.w(LOG_TAG, "Trace is full, no longer recording");
+                abort();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not write to the trace file, no longer recording", e);
+            abort();
+        }
+    }
+
+    // Stop the recording from the background thread, as stop() would, so the provider no longer
+    // records operations and the recording is no longer reported as running.
+    private void abort() {
+        synchronized (PetTraceRecorder.class) {
+            if (sRecorder == this) {
+                sActive = null;
+                sRecorder = null;
+            }
+        }
+        closeWriter();
+        mThread.quit();
+    }
+
+    // Close the trace once the operations recorded so far are written, and stop the thread.
+    private void close() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeWriter();
+                mThread.quit();
+            }
+        });
+    }
+
+    private void closeWriter() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not close the trace file", e);
+        }
+        mWriter = null;
+    }
+
+    // Returns the number of pets in the app's database.
+    private static long countPets(Context context) {
+        Cursor cursor = context.getContentResolver().query(PetEntry.CONTENT_URI,
+                new String[]{"COUNT(*)"}, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays a trace recorded by {@link PetTraceRecorder} against an isolated provider (see
+ * {@link PetProvider#createIsolated(Context, String)}) on a fresh PetDbHelper database, and
+ * reports the latency distribution of every operation type next to the one recorded in the field.
+ *
+ * The database is first filled with as many generated pets as the recorded one had, so queries
+ * and updates by ID find rows. Inserted and updated values are generated to match the recorded
+ * shapes, as the trace doesn't contain the original values; photos are always left empty so no
+ * photo file of the app is ever touched. Operations run one after another, either as fast as
+ * possible or with the recorded gaps between them.
+ *
+ * This is a debugging tool; run it off the UI thread.
+ */
+
+public class PetTraceReplayer {
+
+    public static final String LOG_TAG = PetTraceReplayer.class.getSimpleName();
+
+    // Name of the scratch database file. It is deleted before and after every run.
+    private static final String DATABASE_NAME = "shelter-replay.db";
+
+    // Number of pets inserted per transaction while filling the database.
+    private static final int FILL_BATCH_SIZE = 5000;
+
+    /**
+     * Replay settings.
+     */
+    public static class Config {
+        private boolean mPaced;
+        private long mRandomSeed = PetDataGenerator.DEFAULT_SEED;
+
+        // Whether to wait between operations as long as the recording did, instead of running
+        // them back to back.
+        public Config setPaced(boolean paced) {
+            mPaced = paced;
+            return this;
+        }
+
+        public Config setRandomSeed(long randomSeed) {
+            mRandomSeed = randomSeed;
+            return this;
+        }
+    }
+
+    /**
+     * Result of a replay. Latencies are in microseconds.
+     */
+    public static class Report {
+        public final long elapsedMillis;
+        public final long[] counts = new long[PetTrace.OP_NAMES.length];
+        public final long[] failures = new long[PetTrace.OP_NAMES.length];
+        // p50, p95, p99 and max of every operation type, as replayed and as recorded.
+        public final long[][] percentiles = new long[PetTrace.OP_NAMES.length][];
+        public final long[][] recordedPercentiles = new long[PetTrace.OP_NAMES.length][];
+
+        Report(long elapsedMillis) {
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        // Number of operations replayed successfully.
+        public long getCount() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "%d operations in %d ms%n", getCount(),
+                    elapsedMillis));
+            for (int op = 0; op < PetTrace.OP_NAMES.length; op++) {
+                if (counts[op] == 0 && failures[op] == 0) {
+                    continue;
+                }
+                long[] p = percentiles[op];
+                long[] r = recordedPercentiles[op];
+                sb.append(String.format(Locale.US, "%-11s n=%d failed=%d p50=%dus p95=%dus "
+                        + "p99=%dus max=%dus (recorded p50=%dus p95=%dus p99=%dus max=%dus)%n",
+                        PetTrace.OP_NAMES[op], counts[op], failures[op], p[0], p[1], p[2], p[3],
+                        r[0], r[1], r[2], r[3]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Context mContext;
+
+    private final Config mConfig;
+
+    private final Random mRandom;
+
+    private final PetDataGenerator mGenerator;
+
+    private final PetProviderStressHarness.LatencyLog[] mLatencies =
+            new PetProviderStressHarness.LatencyLog[PetTrace.OP_NAMES.length];
+
+    private final PetProviderStressHarness.LatencyLog[] mRecordedLatencies =
+            new PetProviderStressHarness.LatencyLog[PetTrace.OP_NAMES.length];
+
+    private PetProvider mProvider;
+
+    // Number of pets the database was filled with.
+    private long mPetCount;
+
+    public PetTraceReplayer(Context context, Config config) {
+        mContext = context.getApplicationContext();
+        mConfig = config;
+        mRandom = new Random(config.mRandomSeed);
+        mGenerator = new PetDataGenerator(config.mRandomSeed);
+        for (int op = 0; op < PetTrace.OP_NAMES.length; op++) {
+            mLatencies[op] = new PetProviderStressHarness.LatencyLog();
+            mRecordedLatencies[op] = new PetProviderStressHarness.LatencyLog();
+        }
+    }
+
+    // Replay the given trace and return the report. Blocks until the replay has finished.
+    public Report run(File trace) throws IOException {
+        PetTrace.Reader reader = new PetTrace.Reader(
+                new BufferedInputStream(new FileInputStream(trace)));
+        PetDbHelper.deleteDatabaseWithShelters(mContext, DATABASE_NAME);
+        mProvider = PetProvider.createIsolated(mContext, DATABASE_NAME);
+        try {
+            fill(reader.getPetCount());
+            return replay(reader);
+        } finally {
+            reader.close();
+            mProvider.shutdown();
+            PetDbHelper.deleteDatabaseWithShelters(mContext, DATABASE_NAME);
+        }
+    }
+
+    // Insert the given number of generated pets.
+    private void fill(long count) {
+        for (long inserted = 0; inserted < count; ) {
+            ContentValues[] batch = new ContentValues[(int) Math.min(FILL_BATCH_SIZE,
+                    count - inserted)];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = mGenerator.nextPet();
+            }
+            inserted += mProvider.bulkInsert(PetEntry.CONTENT_URI, batch);
+        }
+        mPetCount = count;
+    }
+
+    private Report replay(PetTrace.Reader reader) throws IOException {
+        long begin = SystemClock.elapsedRealtime();
+        long firstStartMicros = -1;
+        PetTrace.Op op;
+        while ((op = reader.read()) != null) {
+            if (mConfig.mPaced) {
+                if (firstStartMicros == -1) {
+                    firstStartMicros = op.startMicros;
+                }
+                long wait = begin + (op.startMicros - firstStartMicros) / 1000
+                        - SystemClock.elapsedRealtime();
+                if (wait > 0) {
+                    SystemClock.sleep(wait);
+                }
+            }
+
+            mRecordedLatencies[op.type].add(op.durationMicros);
+            long start = System.nanoTime();
+            try {
+                runOperation(op);
+                mLatencies[op.type].add((System.nanoTime() - start) / 1000);
+            } catch (RuntimeException | OperationApplicationException e) {
+                // The replayed database can't match the recorded one exactly, e.g. a recorded
+                // update may hit a pet the replay has already deleted.
+                Log.w(LOG_TAG, "Replaying " + PetTrace.OP_NAMES[op.type] + " failed: " + e);
+                mLatencies[op.type].mFailures++;
+            }
+        }
+
+        Report report = new Report(SystemClock.elapsedRealtime() - begin);
+        for (int type = 0; type < PetTrace.OP_NAMES.length; type++) {
+            report.counts[type] = mLatencies[type].mSize;
+            report.failures[type] = mLatencies[type].mFailures;
+            report.percentiles[type] = summarize(mLatencies[type]);
+            report.recordedPercentiles[type] = summarize(mRecordedLatencies[type]);
+        }
+
+        Log.i(LOG_TAG, report.toString());
+        return report;
+    }
+
+    private void runOperation(PetTrace.Op op) throws OperationApplicationException {
+        switch (op.type) {
+            case PetTrace.OP_QUERY:
+                // Counting the rows runs the query, like a CursorLoader does before delivering.
+                Cursor cursor = mProvider.query(Uri.parse(op.uri), op.projection, op.selection,
+                        op.selectionArgs, op.sortOrder);
+                try {
+                    cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+                break;
+            case PetTrace.OP_INSERT:
+                mProvider.insert(Uri.parse(op.uri), buildValues(op.shapes[0]));
+                break;
+            case PetTrace.OP_BULK_INSERT:
+                ContentValues[] values = new ContentValues[op.shapes.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = buildValues(op.shapes[i]);
+                }
+                mProvider.bulkInsert(Uri.parse(op.uri), values);
+                break;
+            case PetTrace.OP_UPDATE:
+                mProvider.update(Uri.parse(op.uri), buildValues(op.shapes[0]), op.selection,
+                        op.selectionArgs);
+                break;
+            case PetTrace.OP_DELETE:
+                mProvider.delete(Uri.parse(op.uri), op.selection, op.selectionArgs);
+                break;
+            case PetTrace.OP_CALL:
+                Bundle extras = new Bundle();
+                extras.putLongArray(PetContract.EXTRA_IDS, randomPetIds(op.count));
+                extras.putInt(PetContract.EXTRA_WEIGHT_DELTA, (int) op.argument);
+                mProvider.call(op.method, null, extras);
+                break;
+            case PetTrace.OP_BATCH:
+                mProvider.applyBatch(buildOperations(op.children));
+                break;
+        }
+    }
+
+    // Returns the operations of a recorded batch. Queries have no operation of their own, and
+    // are left out.
+    private ArrayList<ContentProviderOperation> buildOperations(ArrayList<PetTrace.Op> ops) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(ops.size());
+        for (PetTrace.Op op : ops) {
+            switch (op.type) {
+                case PetTrace.OP_INSERT:
+                    operations.add(ContentProviderOperation.newInsert(Uri.parse(op.uri))
+                            .withValues(buildValues(op.shapes[0]))
+                            .build());
+                    break;
+                case PetTrace.OP_UPDATE:
+                    operations.add(ContentProviderOperation.newUpdate(Uri.parse(op.uri))
+                            .withValues(buildValues(op.shapes[0]))
+                            .withSelection(op.selection, op.selectionArgs)
+                            .build());
+                    break;
+                case PetTrace.OP_DELETE:
+                    operations.add(ContentProviderOperation.newDelete(Uri.parse(op.uri))
+                            .withSelection(op.selection, op.selectionArgs)
+                            .build());
+                    break;
+            }
+        }
+        return operations;
+    }
+
+    // Returns generated content values of the given shape (see PetTrace.getShape()).
+    private ContentValues buildValues(String shape) {
+        ContentValues values = new ContentValues();
+        if (shape.isEmpty()) {
+            return values;
+        }
+        ContentValues pet = mGenerator.nextPet();
+        for (String column : shape.split(",")) {
+            int separator = column.lastIndexOf(':');
+            String name = column.substring(0, separator);
+            char type = column.charAt(separator + 1);
+            Object value = pet.get(name);
+            if (type == PetTrace.TYPE_NULL || PetEntry.COLUMN_PET_PHOTO.equals(name)) {
+                values.putNull(name);
+            } else if (PetEntry.COLUMN_PET_EXTERNAL_ID.equals(name)) {
+                // Registry merges mostly update pets they have sent before.
+                values.put(name, "replay-" + mRandom.nextInt((int) Math.max(1, mPetCount)));
+            } else if (value instanceof String) {
+                values.put(name, (String) value);
+            } else if (value instanceof Integer) {
+                values.put(name, (Integer) value);
+            } else if (value instanceof Long) {
+                values.put(name, (Long) value);
+            } else if (type == PetTrace.TYPE_INTEGER) {
+                values.put(name, 0);
+            } else if (type == PetTrace.TYPE_REAL) {
+                values.put(name, 0.0);
+            } else if (type == PetTrace.TYPE_BLOB) {
+                values.put(name, new byte[0]);
+            } else {
+                values.put(name, "");
+            }
+        }
+        return values;
+    }
+
+    // Returns the given number of random IDs of the pets the database was filled with.
+    private long[] randomPetIds(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = 1 + (long) (mRandom.nextDouble() * Math.max(1, mPetCount));
+        }
+        return ids;
+    }
+
+    // Returns the p50, p95, p99 and max of the given latencies.
+    private static long[] summarize(PetProviderStressHarness.LatencyLog log) {
+        long[] sorted = Arrays.copyOf(log.mValues, log.mSize);
+        Arrays.sort(sorted);
+        return new long[]{
+                PetProviderStressHarness.percentile(sorted, 50),
+                PetProviderStressHarness.percentile(sorted, 95),
+                PetProviderStressHarness.percentile(sorted, 99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1]};
+    }
+}